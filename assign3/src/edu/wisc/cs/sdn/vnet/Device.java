@@ -91,6 +91,13 @@ public abstract class Device
 		return iface;
 	}
 	
+	/**
+	 * Called once the device's interfaces have been (re)configured from the
+	 * server's hardware info.
+	 */
+	public void interfacesUpdated()
+	{ }
+	
 	/**
 	 * Gets an interface on the device by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -110,5 +117,43 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a frame that is still in its raw wire format out a specific
+	 * interface.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] frame, int offset, int length, 
+			Iface iface)
+	{ return this.vnsComm.sendRawPacket(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Send a frame already serialized as a command for a specific interface,
+	 * leaving the buffer untouched so it can be sent again.
+	 * @param command buffer built by 
+	 * 		  {@link edu.wisc.cs.sdn.vnet.vns.CommandPacket#serializeRaw(byte[], String)}
+	 * @param iface interface the command was serialized for
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendCommand(byte[] command, Iface iface)
+	{ return this.vnsComm.sendCommand(command, iface.getName()); }
+	
+	/**
+	 * Handle a frame received on a specific interface before it is decoded.
+	 * The frame must be left untouched unless it is fully handled here.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be decoded
+	 *         and passed to {@link #handlePacket(Ethernet, Iface)}
+	 */
+	public boolean handleRawPacket(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
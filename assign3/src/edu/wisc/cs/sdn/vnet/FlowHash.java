@@ -0,0 +1,115 @@
+package edu.wisc.cs.sdn.vnet;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Stable hash of the flow a frame belongs to, so that every packet of a
+ * flow is treated the same way (same worker, same path).
+ */
+public class FlowHash
+{
+	private static final short TYPE_IPv4 = 0x0800;
+	private static final byte PROTOCOL_TCP = 0x6;
+	private static final byte PROTOCOL_UDP = 0x11;
+
+	/**
+	 * Hash the IPv4 5-tuple of a raw Ethernet frame. Ports are only included
+	 * for unfragmented TCP and UDP; frames that are not IPv4 are hashed on
+	 * their MAC addresses.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the flow
+	 */
+	public static int hash(byte[] frame, int offset, int length)
+	{
+		if (length >= 14 + 20 && getShort(frame, offset + 12) == TYPE_IPv4)
+		{
+			int ip = offset + 14;
+			int headerLength = (frame[ip] & 0xf) * 4;
+			byte protocol = frame[ip + 9];
+			int ports = 0;
+			boolean fragment = (getShort(frame, ip + 6) & 0x1fff) != 0;
+			if ((protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP)
+					&& !fragment && 14 + headerLength + 4 <= length)
+			{ ports = getInt(frame, ip + headerLength); }
+			return hash(getInt(frame, ip + 12), getInt(frame, ip + 16),
+					protocol, ports);
+		}
+
+		int h = 0;
+		for (int i = 0; i < 12 && i < length; i++)
+		{ h = 31 * h + frame[offset + i]; }
+		return mix(h);
+	}
+
+	/**
+	 * Hash the 5-tuple of a decoded IPv4 packet; gives the same result as
+	 * {@link #hash(byte[], int, int)} on the frame it was decoded from.
+	 * @param packet the packet
+	 * @return hash of the flow
+	 */
+	public static int hash(IPv4 packet)
+	{
+		int ports = 0;
+		if (0 == packet.getFragmentOffset())
+		{
+			IPacket payload = packet.getPayload();
+			if (payload instanceof TCP)
+			{
+				TCP tcp = (TCP)payload;
+				ports = (tcp.getSourcePort() << 16) 
+						| (tcp.getDestinationPort() & 0xffff);
+			}
+			else if (payload instanceof UDP)
+			{
+				UDP udp = (UDP)payload;
+				ports = (udp.getSourcePort() << 16) 
+						| (udp.getDestinationPort() & 0xffff);
+			}
+		}
+		return hash(packet.getSourceAddress(), packet.getDestinationAddress(),
+				packet.getProtocol(), ports);
+	}
+
+	/**
+	 * Hash an IPv4 5-tuple.
+	 * @param srcIp source IP address
+	 * @param dstIp destination IP address
+	 * @param protocol IP protocol
+	 * @param ports source port in the upper 16 bits, destination port in the
+	 *        lower 16 bits; 0 if the protocol has no ports
+	 * @return hash of the flow
+	 */
+	public static int hash(int srcIp, int dstIp, byte protocol, int ports)
+	{
+		int h = srcIp;
+		h = 31 * h + dstIp;
+		h = 31 * h + protocol;
+		h = 31 * h + ports;
+		return mix(h);
+	}
+
+	/** Finalizer from MurmurHash3 so that nearby tuples spread out */
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static short getShort(byte[] data, int offset)
+	{ return (short)(((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff)); }
+
+	private static int getInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+}
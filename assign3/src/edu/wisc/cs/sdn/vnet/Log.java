@@ -0,0 +1,220 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Leveled, sampled logging with an asynchronous appender. Records below the
+ * configured level, and packet records skipped by 1-in-N sampling, cost no
+ * formatting at all. Records that are emitted are queued on a lock-free
+ * queue and formatted and printed by a background thread, so the
+ * forwarding path never waits on stdout.
+ */
+public class Log
+{
+	public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+	/** Records queued beyond this are dropped rather than buffered */
+	public static final int MAX_QUEUED = 64 * 1024;
+
+	/** Longest the appender sleeps before checking the queue again */
+	private static final long IDLE_PARK_NANOS = 10 * 1000 * 1000;
+
+	/** A record waiting to be printed */
+	private static class Record
+	{
+		final String format;
+		final Object[] args;
+
+		Record(String format, Object[] args)
+		{
+			this.format = format;
+			this.args = args;
+		}
+
+		public String toString()
+		{ return (null == args) ? format : String.format(format, args); }
+	}
+
+	/** IPv4 address that is only turned into a string when printed */
+	private static class Ip
+	{
+		final int address;
+
+		Ip(int address)
+		{ this.address = address; }
+
+		public String toString()
+		{ return IPv4.fromIPv4Address(this.address); }
+	}
+
+	private static volatile Level level = Level.INFO;
+	private static volatile int packetSampling = 1;
+
+	private static final ConcurrentLinkedQueue<Record> queue =
+			new ConcurrentLinkedQueue<Record>();
+	private static final AtomicInteger queued = new AtomicInteger();
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile PrintStream out = System.out;
+	private static volatile boolean idle;
+	private static volatile boolean running = true;
+	private static final Thread appender = startAppender();
+
+	private Log()
+	{ }
+
+	/**
+	 * @param level records below this level are discarded
+	 */
+	public static void setLevel(Level level)
+	{ Log.level = level; }
+
+	/**
+	 * @return records below this level are discarded
+	 */
+	public static Level getLevel()
+	{ return level; }
+
+	/**
+	 * @param n only one in every n packet records is emitted
+	 */
+	public static void setPacketSampling(int n)
+	{ packetSampling = Math.max(1, n); }
+
+	/**
+	 * @param stream where records are printed
+	 */
+	public static void setOutput(PrintStream stream)
+	{ out = stream; }
+
+	/**
+	 * @return true if records at the given level are emitted
+	 */
+	public static boolean isEnabled(Level recordLevel)
+	{ return recordLevel.compareTo(level) >= 0 && level != Level.OFF; }
+
+	/**
+	 * @return an IPv4 address that is formatted only if the record using it
+	 *         is printed
+	 */
+	public static Object ip(int address)
+	{ return new Ip(address); }
+
+	public static void debug(String format, Object... args)
+	{ log(Level.DEBUG, format, args); }
+
+	public static void info(String format, Object... args)
+	{ log(Level.INFO, format, args); }
+
+	public static void warn(String format, Object... args)
+	{ log(Level.WARN, format, args); }
+
+	public static void error(String format, Object... args)
+	{ log(Level.ERROR, format, args); }
+
+	/**
+	 * Queue a record. Arguments must not change after the call since they
+	 * are formatted later on the appender thread.
+	 */
+	public static void log(Level recordLevel, String format, Object... args)
+	{
+		if (!isEnabled(recordLevel))
+		{ return; }
+		enqueue(new Record(format, (0 == args.length) ? null : args));
+	}
+
+	/**
+	 * Log a packet, subject to 1-in-N sampling. Packets are mutable and may
+	 * point into pooled receive buffers, so a sampled packet is formatted
+	 * here rather than on the appender thread.
+	 * @param recordLevel level of the record
+	 * @param prefix text printed before the packet
+	 * @param etherPacket the packet
+	 */
+	public static void packet(Level recordLevel, String prefix,
+			Ethernet etherPacket)
+	{
+		if (!isEnabled(recordLevel))
+		{ return; }
+		int n = packetSampling;
+		if (n > 1 && ThreadLocalRandom.current().nextInt(n) != 0)
+		{ return; }
+		enqueue(new Record(prefix
+				+ etherPacket.toString().replace("\n", "\n\t"), null));
+	}
+
+	/**
+	 * @return number of records dropped because the queue was full
+	 */
+	public static long getDropped()
+	{ return dropped.sum(); }
+
+	/**
+	 * Print everything already queued, then stop the appender thread.
+	 */
+	public static void shutdown()
+	{
+		running = false;
+		LockSupport.unpark(appender);
+		try
+		{ appender.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private static void enqueue(Record record)
+	{
+		if (queued.incrementAndGet() > MAX_QUEUED)
+		{
+			queued.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		queue.offer(record);
+		if (idle)
+		{ LockSupport.unpark(appender); }
+	}
+
+	private static Thread startAppender()
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{ append(); }
+		}, "log-appender");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void append()
+	{
+		while (true)
+		{
+			Record record = queue.poll();
+			if (record != null)
+			{
+				queued.decrementAndGet();
+				PrintStream stream = out;
+				stream.println(record.toString());
+				if (queue.isEmpty())
+				{ stream.flush(); }
+				continue;
+			}
+
+			if (!running)
+			{ return; }
+			idle = true;
+			if (queue.isEmpty() && running)
+			{ LockSupport.parkNanos(IDLE_PARK_NANOS); }
+			idle = false;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet;
 
+import net.floodlightcontroller.packet.BasePacket;
+
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -17,6 +19,15 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		boolean fastPath = false;
+		boolean compiledRoutes = false;
+		boolean fastLoad = false;
+		boolean saveSnapshots = false;
+		boolean lazyDecode = false;
+		int numWorkers = 0;
+		boolean batchSends = false;
+		Log.Level logLevel = Log.Level.INFO;
+		int packetSampling = 1;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -42,6 +53,24 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ fastPath = true; }
+			else if (arg.equals("-d"))
+			{ compiledRoutes = true; }
+			else if (arg.equals("-F"))
+			{ fastLoad = true; }
+			else if (arg.equals("-W"))
+			{ saveSnapshots = true; }
+			else if (arg.equals("-z"))
+			{ lazyDecode = true; }
+			else if (arg.equals("-w"))
+			{ numWorkers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-b"))
+			{ batchSends = true; }
+			else if (arg.equals("-L"))
+			{ logLevel = Log.Level.valueOf(args[++i].toUpperCase()); }
+			else if (arg.equals("-S"))
+			{ packetSampling = Integer.parseInt(args[++i]); }
 		}
 		
 		if (null == host)
@@ -62,12 +91,22 @@ public class Main
 			}
 		}
 		
+		Log.setLevel(logLevel);
+		Log.setPacketSampling(packetSampling);
+		
+		// Only decode packet headers as far as the device looks into them
+		BasePacket.setLazyDecode(lazyDecode);
+		
 		if (host.startsWith("s"))
 		{ dev = new Switch(host, dump); }
 		else if (host.startsWith("r"))
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			((Router)dev).setFastPath(fastPath);
+			((Router)dev).setTableLoading(fastLoad, saveSnapshots);
+			if (compiledRoutes)
+			{ ((Router)dev).enableCompiledRoutes(); }
 		}
 		else 
 		{
@@ -95,19 +134,30 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Forward packets on worker threads if requested
+		if (numWorkers > 0 && !vnsComm.startPipeline(numWorkers))
+		{ System.exit(1); }
+		// Coalesce outgoing packets into batched writes if requested
+		if (batchSends && !vnsComm.startWriter())
+		{ System.exit(1); }
+		
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
+		vnsComm.shutdown();
 		dev.destroy();
+		Log.shutdown();
 	}
 	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file] [-f] [-d] [-z]");
+		System.out.println("     [-w num_workers] [-b] [-F] [-W]");
+		System.out.println("     [-L debug|info|warn|error|off] [-S packet_sampling]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
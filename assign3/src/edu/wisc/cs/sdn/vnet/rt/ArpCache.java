@@ -4,8 +4,14 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,19 +19,65 @@ import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A cache of MAC address to IP address mappings.
+ * A cache of MAC address to IP address mappings. MAC addresses are kept as
+ * longs in a primitive map, so lookups neither box nor allocate.
+ * <p>
+ * Learned entries expire {@link #TIMEOUT_MS} after they were last confirmed.
+ * Expiry happens in periodic sweeps rather than on lookup; a sweep also
+ * reports entries that are about to expire and were used since the previous
+ * sweep, so they can be re-resolved while still valid. Entries loaded from a
+ * file never expire.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Returned by {@link #lookupMac(int)} when there is no mapping */
+	public static final long NO_MAC = IntLongMap.ABSENT;
+	
+	/** Milliseconds a learned entry stays valid after it was confirmed */
+	public static final long TIMEOUT_MS = 60000;
+	
+	/** Milliseconds before expiry that a used entry is refreshed */
+	public static final long REFRESH_MS = 10000;
+	
+	/** Time added recorded for entries that never expire */
+	private static final long STATIC = 0;
+	
+	/** Number of bits in the filter of recently used addresses, as a log */
+	private static final int USED_BITS_LOG2 = 14;
+
+	/** Entries in the cache; maps an IP address to a MAC address */
+	private final IntLongMap macs;
+
+	/** Maps an IP address to the time its entry was added or confirmed */
+	private final IntLongMap timesAdded;
+	
+	/** 
+	 * Addresses used since the last sweep, one bit per hash; a collision 
+	 * only makes a cold entry look used 
+	 */
+	private final AtomicLongArray used;
+
+	/** Bumped after every change to the entries */
+	private final AtomicInteger generation;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.macs = new IntLongMap();
+		this.timesAdded = new IntLongMap();
+		this.used = new AtomicLongArray((1 << USED_BITS_LOG2) / 64);
+		this.generation = new AtomicInteger();
+	}
+
+	/**
+	 * @return a counter that changes whenever an entry is inserted, changed
+	 *         or removed
+	 */
+	public int getGeneration()
+	{ return this.generation.get(); }
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -34,7 +86,107 @@ public class ArpCache
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(ip, mac.toLong()); }
+	
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair. Inserting a mapping that is already present only restarts its
+	 * timeout.
+	 * @param ip IP address corresponding to MAC address
+	 * @param mac MAC address in the lower 48 bits
+	 */
+	public void insert(int ip, long mac)
+	{ this.put(ip, mac, System.currentTimeMillis()); }
+	
+	/**
+	 * Insert an entry that never expires.
+	 */
+	private void insertStatic(int ip, long mac)
+	{ this.put(ip, mac, STATIC); }
+	
+	private synchronized void put(int ip, long mac, long timeAdded)
+	{
+		// A static entry is not replaced by what was learned
+		if (STATIC == this.timesAdded.get(ip) && timeAdded != STATIC)
+		{ return; }
+		this.timesAdded.put(ip, timeAdded);
+		if (this.macs.put(ip, mac) != mac)
+		{ this.generation.incrementAndGet(); }
+	}
+	
+	/**
+	 * Record that an address was used to forward a packet, so its entry is
+	 * refreshed before it expires. Cheap enough to call for every packet.
+	 * @param ip IP address of a next hop
+	 */
+	public void touch(int ip)
+	{
+		int bit = usedBit(ip);
+		long mask = 1L << bit;
+		if (0 == (this.used.get(bit >>> 6) & mask))
+		{ this.used.getAndAccumulate(bit >>> 6, mask, (a, b) -> a | b); }
+	}
+	
+	/**
+	 * Remove the learned entries that have expired, and report the ones that
+	 * expire soon and were used since the previous sweep. 
+	 * @param now current time in milliseconds since the epoch
+	 * @param refresh called with the IP address of each entry to refresh
+	 * @return number of entries removed
+	 */
+	public int sweep(long now, IntConsumer refresh)
+	{
+		long[] used = new long[this.used.length()];
+		for (int i = 0; i < used.length; i++)
+		{ used[i] = this.used.getAndSet(i, 0); }
+		
+		List<Integer> expired = new ArrayList<Integer>();
+		this.timesAdded.forEach((ip, timeAdded) ->
+		{
+			if (STATIC == timeAdded)
+			{ return; }
+			long age = now - timeAdded;
+			if (age >= TIMEOUT_MS)
+			{ expired.add(ip); }
+			else if (age >= TIMEOUT_MS - REFRESH_MS)
+			{
+				int bit = usedBit(ip);
+				if ((used[bit >>> 6] & (1L << bit)) != 0)
+				{ refresh.accept(ip); }
+			}
+		});
+		if (expired.isEmpty())
+		{ return 0; }
+		
+		int removed = 0;
+		synchronized (this)
+		{
+			for (int ip : expired)
+			{
+				// Skip entries confirmed since they were found expired
+				long timeAdded = this.timesAdded.get(ip);
+				if (timeAdded != IntLongMap.ABSENT && timeAdded != STATIC
+						&& now - timeAdded >= TIMEOUT_MS)
+				{
+					this.macs.remove(ip);
+					this.timesAdded.remove(ip);
+					removed++;
+				}
+			}
+			if (removed > 0)
+			{ this.generation.incrementAndGet(); }
+		}
+		return removed;
+	}
+	
+	/**
+	 * @return number of entries in the cache
+	 */
+	public int size()
+	{ return this.macs.size(); }
+	
+	private static int usedBit(int ip)
+	{ return (ip * 0x9E3779B9) >>> (32 - USED_BITS_LOG2); }
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +194,137 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		long mac = this.macs.get(ip);
+		if (NO_MAC == mac)
+		{ return null; }
+		return new ArpEntry(MACAddress.valueOf(mac), ip, 
+				this.timesAdded.get(ip));
+	}
+	
+	/**
+	 * Checks if an IP->MAC mapping is in the cache, without allocating.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address in the lower 48 bits; NO_MAC if none exists
+	 */
+	public long lookupMac(int ip)
+	{ return this.macs.get(ip); }
+	
+	/**
+	 * Looks up the IP->MAC mappings for a burst of IP addresses.
+	 * @param ips IP addresses whose MAC addresses are desired
+	 * @param count number of addresses to look up
+	 * @param out filled with the MAC addresses in the lower 48 bits; NO_MAC
+	 *        where none exists
+	 */
+	public void lookupBatch(int[] ips, int count, long[] out)
+	{
+		IntLongMap macs = this.macs;
+		for (int i = 0; i < count; i++)
+		{ out[i] = macs.get(ips[i]); }
+	}
+	
+	/** Magic number at the start of a binary ARP cache snapshot */
+	public static final int SNAPSHOT_MAGIC = 0x56415231; // "VAR1"
+	
+	/**
+	 * Populate the ARP cache from a file through a memory mapping. Accepts
+	 * the same text format as {@link #load(String)}, parsed without regular
+	 * expressions, or a binary snapshot written by 
+	 * {@link #saveSnapshot(String)}. Nothing is inserted if the file has an
+	 * error.
+	 * @param filename name of the file containing the ARP cache
+	 * @return true if the ARP cache was successfully loaded, otherwise false
+	 */
+	public boolean loadFast(String filename)
+	{
+		TableFileReader reader;
+		try
+		{ reader = TableFileReader.open(filename); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		
+		IntLongMap loaded = new IntLongMap();
+		try
+		{
+			if (reader.hasMagic(SNAPSHOT_MAGIC))
+			{
+				// Snapshot layout: magic, entry count, then IP and MAC per entry
+				reader.readInt();
+				int count = reader.readCount(4 + MACAddress.MAC_ADDRESS_LENGTH);
+				for (int i = 0; i < count; i++)
+				{
+					int ip = reader.readInt();
+					long mac = (reader.readInt() & 0xffffffffL) << 16;
+					mac |= reader.readByte() << 8 | reader.readByte();
+					if (0 == ip)
+					{ throw new IllegalArgumentException("invalid IP address"); }
+					loaded.put(ip, mac);
+				}
+			}
+			else
+			{
+				while (reader.nextLine())
+				{
+					int ip = reader.parseIp();
+					long mac = reader.parseMac();
+					reader.endLine();
+					if (0 == ip)
+					{ throw reader.error("invalid IP address"); }
+					loaded.put(ip, mac);
+				}
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Error loading ARP cache " + filename + ", "
+					+ e.getMessage());
+			return false;
+		}
+		
+		loaded.forEach((ip, mac) -> this.insertStatic(ip, mac));
+		return true;
+	}
+	
+	/**
+	 * Write the ARP cache as a binary snapshot that {@link #loadFast(String)}
+	 * can load.
+	 * @param filename name of the file to write
+	 * @return true if the snapshot was written, otherwise false
+	 */
+	public boolean saveSnapshot(String filename)
+	{
+		List<long[]> entries = new ArrayList<long[]>();
+		this.macs.forEach((ip, mac) -> entries.add(new long[] { ip, mac }));
+		ByteBuffer buf = ByteBuffer.allocate(8 
+				+ entries.size() * (4 + MACAddress.MAC_ADDRESS_LENGTH));
+		buf.putInt(SNAPSHOT_MAGIC);
+		buf.putInt(entries.size());
+		for (long[] entry : entries)
+		{
+			buf.putInt((int) entry[0]);
+			buf.putInt((int) (entry[1] >>> 16));
+			buf.putShort((short) entry[1]);
+		}
+		buf.flip();
+		
+		try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+				FileChannel channel = file.getChannel())
+		{
+			channel.truncate(0);
+			while (buf.hasRemaining())
+			{ channel.write(buf); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -118,7 +400,7 @@ public class ArpCache
 			}
 			
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insertStatic(ip, mac.toLong());
 		}
 	
 		// Close the file
@@ -128,11 +410,9 @@ public class ArpCache
 	
 	public String toString()
 	{
-		String result = "IP\t\tMAC\n";
-		for (ArpEntry entry : this.entries.values())
-		{
-			result += entry.toString()+"\n";
-		}
-		return result;
+		StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+		this.macs.forEach((ip, mac) -> result.append(
+				new ArpEntry(MACAddress.valueOf(mac), ip).toString()).append('\n'));
+		return result.toString();
 	}
 }
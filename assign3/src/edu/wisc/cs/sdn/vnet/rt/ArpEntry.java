@@ -15,7 +15,10 @@ public class ArpEntry
 	/** IP address corresponding to MAC address */
 	private int ip;
 	
-	/** Time (in milliseconds since the epoch) the mapping was created */
+	/** 
+	 * Time (in milliseconds since the epoch) the mapping was created or last
+	 * confirmed; 0 if it never expires 
+	 */
 	private long timeAdded;
 	
 	/**
@@ -24,10 +27,20 @@ public class ArpEntry
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, System.currentTimeMillis()); }
+	
+	/**
+	 * Create an ARP table entry for a mapping added at a given time.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping
+	 *        was created or last confirmed; 0 if it never expires
+	 */
+	ArpEntry(MACAddress mac, int ip, long timeAdded)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.timeAdded = timeAdded;
 	}
 	
 	/**
@@ -44,6 +57,7 @@ public class ArpEntry
 	
 	/**
 	 * @return time (in milliseconds since the epoch) the mapping was created
+	 *         or last confirmed; 0 if it never expires
 	 */
 	public long getTimeAdded()
 	{ return this.timeAdded; }
@@ -0,0 +1,320 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Resolves next-hop MAC addresses that are not in the ARP cache. Packets
+ * waiting for an address are parked in a bounded queue per next-hop IP while
+ * ARP requests are sent out of the egress interface, once a second up to
+ * {@link #MAX_ATTEMPTS} times. A reply flushes the queue; if none comes, the
+ * packets are dropped and their senders told the host is unreachable.
+ * <p>
+ * The resolver also sweeps the ARP cache every {@link #SWEEP_INTERVAL_MS},
+ * expiring stale entries and re-resolving busy ones before they expire, so
+ * traffic to an active next hop never waits on resolution.
+ */
+public class ArpResolver {
+    /**
+     * ARP requests sent for one address before giving up
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Milliseconds between ARP requests for one address
+     */
+    public static final long RETRY_INTERVAL_MS = 1000;
+
+    /**
+     * Packets queued for one address; later packets are dropped
+     */
+    public static final int MAX_QUEUED = 16;
+
+    /**
+     * Addresses being resolved at once; packets for further addresses are
+     * dropped, so a scan of unused addresses cannot exhaust memory
+     */
+    public static final int MAX_PENDING = 1024;
+
+    /**
+     * Milliseconds between sweeps of the ARP cache
+     */
+    public static final long SWEEP_INTERVAL_MS = 1000;
+
+    /**
+     * A packet waiting for its next hop's MAC address.
+     */
+    private static class Queued {
+        final Ethernet etherPacket;
+        final Iface inIface;
+
+        Queued(Ethernet etherPacket, Iface inIface) {
+            this.etherPacket = etherPacket;
+            this.inIface = inIface;
+        }
+    }
+
+    /**
+     * Resolution in progress for one next-hop IP address. Guarded by its own
+     * lock.
+     */
+    private static class Pending {
+        final int ip;
+        final Iface outIface;
+        final ArrayDeque<Queued> queue;
+        int attempts;
+        boolean done;
+
+        Pending(int ip, Iface outIface) {
+            this.ip = ip;
+            this.outIface = outIface;
+            this.queue = new ArrayDeque<Queued>();
+        }
+    }
+
+    private final Router router;
+    private final ArpCache arpCache;
+    private final ConcurrentHashMap<Integer, Pending> pending;
+    private final ScheduledExecutorService scheduler;
+
+    /* Metrics */
+    private final LongAdder requests;
+    private final LongAdder resolved;
+    private final LongAdder failed;
+    private final LongAdder dropped;
+    private final LongAdder refreshed;
+    private final LongAdder expired;
+
+    /**
+     * @param router   router that sends the requests and queued packets
+     * @param arpCache ARP cache that replies are added to
+     */
+    public ArpResolver(Router router, ArpCache arpCache) {
+        this.router = router;
+        this.arpCache = arpCache;
+        this.pending = new ConcurrentHashMap<Integer, Pending>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "arp-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.requests = new LongAdder();
+        this.resolved = new LongAdder();
+        this.failed = new LongAdder();
+        this.dropped = new LongAdder();
+        this.refreshed = new LongAdder();
+        this.expired = new LongAdder();
+        this.scheduler.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start resolving an address, unless it is already being resolved.
+     *
+     * @param ip       next-hop IP address
+     * @param outIface interface the next hop is reached through
+     */
+    public void request(int ip, Iface outIface) {
+        this.start(ip, outIface);
+    }
+
+    /**
+     * Hold a packet until its next hop's MAC address is known, starting
+     * resolution if needed. The packet is sent with the MAC addresses of
+     * the next hop and the egress interface filled in.
+     *
+     * @param ip          next-hop IP address
+     * @param outIface    interface the next hop is reached through
+     * @param etherPacket packet to send, ready apart from its MAC addresses
+     * @param inIface     interface the packet arrived on, for reporting
+     *                    failure
+     */
+    public void enqueue(int ip, Iface outIface, Ethernet etherPacket, Iface inIface) {
+        while (true) {
+            Pending p = this.start(ip, outIface);
+            if (null == p) {
+                this.dropped.increment();
+                return;
+            }
+            synchronized (p) {
+                if (!p.done) {
+                    if (p.queue.size() >= MAX_QUEUED) {
+                        this.dropped.increment();
+                        return;
+                    }
+                    p.queue.add(new Queued(etherPacket, inIface));
+                    break;
+                }
+            }
+
+            // Resolution finished before the packet could be queued
+            long mac = this.arpCache.lookupMac(ip);
+            if (mac != ArpCache.NO_MAC) {
+                this.send(etherPacket, outIface, MACAddress.valueOf(mac).toBytes());
+                return;
+            }
+        }
+
+        // The reply may have arrived while the packet was being queued
+        long mac = this.arpCache.lookupMac(ip);
+        if (mac != ArpCache.NO_MAC) {
+            this.complete(ip, MACAddress.valueOf(mac));
+        }
+    }
+
+    /**
+     * Record a MAC address learned from an ARP packet and send any packets
+     * waiting for it.
+     *
+     * @param ip  IP address
+     * @param mac MAC address it resolves to
+     */
+    public void learn(int ip, MACAddress mac) {
+        // Also restarts the entry's timeout if the mapping is unchanged
+        this.arpCache.insert(mac, ip);
+        this.complete(ip, mac);
+    }
+
+    /**
+     * @return number of addresses being resolved
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    public String toString() {
+        return String.format("requests=%d resolved=%d failed=%d dropped=%d pending=%d refreshed=%d expired=%d",
+                this.requests.sum(), this.resolved.sum(), this.failed.sum(), this.dropped.sum(),
+                this.pending.size(), this.refreshed.sum(), this.expired.sum());
+    }
+
+    /**
+     * @return the resolution for the address; null if the pending limit has
+     * been reached
+     */
+    private Pending start(int ip, Iface outIface) {
+        Pending p = this.pending.get(ip);
+        if (p != null) {
+            return p;
+        }
+        if (this.pending.size() >= MAX_PENDING) {
+            return null;
+        }
+        Pending created = new Pending(ip, outIface);
+        p = this.pending.putIfAbsent(ip, created);
+        if (p != null) {
+            return p;
+        }
+        this.retry(created);
+        return created;
+    }
+
+    private void sweep() {
+        try {
+            int removed = this.arpCache.sweep(System.currentTimeMillis(), this::refresh);
+            this.expired.add(removed);
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task
+            Log.error("ARP cache sweep failed: %s", e);
+        }
+    }
+
+    /**
+     * Re-resolve an entry that is about to expire. It stays usable meanwhile;
+     * a reply restarts its timeout.
+     */
+    private void refresh(int ip) {
+        for (Iface iface : this.router.getInterfaces().values()) {
+            int mask = iface.getSubnetMask();
+            if (mask != 0 && (iface.getIpAddress() & mask) == (ip & mask)) {
+                if (this.start(ip, iface) != null) {
+                    this.refreshed.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    private void retry(Pending p) {
+        boolean gaveUp;
+        synchronized (p) {
+            if (p.done) {
+                return;
+            }
+            gaveUp = p.attempts >= MAX_ATTEMPTS;
+            if (gaveUp) {
+                p.done = true;
+                this.pending.remove(p.ip, p);
+            } else {
+                p.attempts++;
+            }
+        }
+        if (!gaveUp) {
+            this.sendRequest(p.ip, p.outIface);
+            this.scheduler.schedule(() -> this.retry(p), RETRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        // Out of attempts; nothing can be added to the queue once done
+        this.failed.increment();
+        Log.debug("ARP resolution of %s failed", Log.ip(p.ip));
+        for (Queued q : p.queue) {
+            this.router.sendHostUnreachable(q.etherPacket, q.inIface);
+        }
+    }
+
+    private void complete(int ip, MACAddress mac) {
+        Pending p = this.pending.remove(ip);
+        if (null == p) {
+            return;
+        }
+        synchronized (p) {
+            p.done = true;
+        }
+        this.resolved.increment();
+        byte[] dstMac = mac.toBytes();
+        for (Queued q : p.queue) {
+            this.send(q.etherPacket, p.outIface, dstMac);
+        }
+    }
+
+    private void send(Ethernet etherPacket, Iface outIface, byte[] dstMac) {
+        etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+        etherPacket.setDestinationMACAddress(dstMac);
+        this.router.sendPacket(etherPacket, outIface);
+    }
+
+    private void sendRequest(int ip, Iface outIface) {
+        ARP arp = new ARP();
+        arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+        arp.setProtocolType(ARP.PROTO_TYPE_IP);
+        arp.setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
+        arp.setProtocolAddressLength((byte) 4);
+        arp.setOpCode(ARP.OP_REQUEST);
+        arp.setSenderHardwareAddress(outIface.getMacAddress().toBytes());
+        arp.setSenderProtocolAddress(outIface.getIpAddress());
+        arp.setTargetHardwareAddress(new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+        arp.setTargetProtocolAddress(ip);
+
+        Ethernet ether = new Ethernet();
+        ether.setEtherType(Ethernet.TYPE_ARP);
+        ether.setSourceMACAddress(outIface.getMacAddress().toBytes());
+        ether.setDestinationMACAddress(Ethernet.toMACAddress("ff:ff:ff:ff:ff:ff"));
+        ether.setPayload(arp);
+
+        this.requests.increment();
+        Log.debug("ARP request for %s out %s", Log.ip(ip), outIface.getName());
+        this.router.sendPacket(ether, outIface);
+    }
+}
@@ -0,0 +1,277 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Fixed-size, direct-mapped cache of resolved destinations: for a
+ * destination IP, the output interface, gateway and next-hop MAC of each
+ * equal-cost next hop, found by a route lookup followed by ARP lookups. Each
+ * result records the generations of the route table and ARP cache it was
+ * resolved against, and is ignored once either has changed, so no explicit
+ * invalidation is needed.
+ */
+public class DestinationCache {
+    /**
+     * Number of cached destinations; a power of two
+     */
+    public static final int SIZE = 1024;
+
+    /**
+     * The resolved outcome for one destination: every equal-cost next hop
+     * whose MAC address is known. Immutable.
+     */
+    public static class Result {
+        private final int destinationAddress;
+        private final int routeGeneration;
+        private final int arpGeneration;
+        private final Iface[] ifaces;
+        private final int[] gatewayAddresses;
+        private final long[] macs;
+        private final byte[][] macBytes;
+        private final PrefixCounter counter;
+
+        Result(int destinationAddress, int routeGeneration, int arpGeneration,
+               Iface[] ifaces, int[] gatewayAddresses, long[] macs, PrefixCounter counter) {
+            this.destinationAddress = destinationAddress;
+            this.routeGeneration = routeGeneration;
+            this.arpGeneration = arpGeneration;
+            this.ifaces = ifaces;
+            this.gatewayAddresses = gatewayAddresses;
+            this.macs = macs;
+            this.counter = counter;
+            this.macBytes = new byte[macs.length][];
+            for (int i = 0; i < macs.length; i++) {
+                this.macBytes[i] = MACAddress.valueOf(macs[i]).toBytes();
+            }
+        }
+
+        /**
+         * @return destination IP address
+         */
+        public int getDestinationAddress() {
+            return this.destinationAddress;
+        }
+
+        /**
+         * @return number of resolved next hops; at least one
+         */
+        public int getNextHopCount() {
+            return this.ifaces.length;
+        }
+
+        /**
+         * Pick the next hop for a flow.
+         *
+         * @param flowHash hash of the flow's 5-tuple
+         * @return index of the next hop; stable for a flow while the route and
+         * ARP entries are unchanged
+         */
+        public int select(int flowHash) {
+            return (1 == this.ifaces.length) ? 0 : RouteEntry.selectNextHop(flowHash, this.ifaces.length);
+        }
+
+        /**
+         * @return the router interface out which packets to the destination
+         * are sent through the primary next hop
+         */
+        public Iface getInterface() {
+            return this.ifaces[0];
+        }
+
+        /**
+         * @param index index of a next hop
+         * @return the router interface of the next hop
+         */
+        public Iface getInterface(int index) {
+            return this.ifaces[index];
+        }
+
+        /**
+         * @param index index of a next hop
+         * @return gateway IP address; 0 if the destination is directly
+         * connected
+         */
+        public int getGatewayAddress(int index) {
+            return this.gatewayAddresses[index];
+        }
+
+        /**
+         * @param index index of a next hop
+         * @return IP address the next hop's MAC address was resolved for: the
+         * gateway, or the destination if it is directly connected
+         */
+        public int getNextHopAddress(int index) {
+            int gateway = this.gatewayAddresses[index];
+            return (gateway != 0) ? gateway : this.destinationAddress;
+        }
+
+        /**
+         * @return MAC address of the primary next hop
+         */
+        public MACAddress getMac() {
+            return MACAddress.valueOf(this.macs[0]);
+        }
+
+        /**
+         * @param index index of a next hop
+         * @return MAC address of the next hop in the lower 48 bits
+         */
+        public long getMacLong(int index) {
+            return this.macs[index];
+        }
+
+        /**
+         * @param index index of a next hop
+         * @return MAC address of the next hop as bytes; shared, must not be
+         * modified
+         */
+        public byte[] getMacBytes(int index) {
+            return this.macBytes[index];
+        }
+
+        /**
+         * @return traffic counter of the route the destination matched
+         */
+        public PrefixCounter getCounter() {
+            return this.counter;
+        }
+
+        public String toString() {
+            String result = "";
+            for (int i = 0; i < this.ifaces.length; i++) {
+                result += String.format("%s%s \t%s \t%s \t%s", (i > 0) ? "\n" : "",
+                        IPv4.fromIPv4Address(this.destinationAddress),
+                        IPv4.fromIPv4Address(this.gatewayAddresses[i]),
+                        MACAddress.valueOf(this.macs[i]).toString(), this.ifaces[i].getName());
+            }
+            return result;
+        }
+    }
+
+    private final RouteTable routeTable;
+    private final ArpCache arpCache;
+    private final ArpResolver arpResolver;
+    private final AtomicReferenceArray<Result> slots;
+
+    /* Metrics */
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * @param routeTable route table to resolve destinations against
+     * @param arpCache   ARP cache to resolve next hops against
+     */
+    public DestinationCache(RouteTable routeTable, ArpCache arpCache) {
+        this(routeTable, arpCache, null);
+    }
+
+    /**
+     * @param routeTable  route table to resolve destinations against
+     * @param arpCache    ARP cache to resolve next hops against
+     * @param arpResolver asked to resolve next hops missing from the ARP
+     *                    cache; null if they should not be
+     */
+    public DestinationCache(RouteTable routeTable, ArpCache arpCache, ArpResolver arpResolver) {
+        this.routeTable = routeTable;
+        this.arpCache = arpCache;
+        this.arpResolver = arpResolver;
+        this.slots = new AtomicReferenceArray<Result>(SIZE);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * Resolve a destination, using the cached result when it is still
+     * current.
+     *
+     * @param ip destination IP address
+     * @return the output interface, gateway and next-hop MAC of each next hop
+     * in the ARP cache; null if there is no route or no next hop is in the
+     * ARP cache
+     */
+    public Result lookup(int ip) {
+        // Read the generations before resolving, so a change made while
+        // resolving leaves the stored result stale rather than wrong
+        int routeGeneration = this.routeTable.getGeneration();
+        int arpGeneration = this.arpCache.getGeneration();
+
+        int index = hash(ip) & (SIZE - 1);
+        Result result = this.slots.get(index);
+        if (result != null && result.destinationAddress == ip
+                && result.routeGeneration == routeGeneration
+                && result.arpGeneration == arpGeneration) {
+            this.hits.increment();
+            return result;
+        }
+        this.misses.increment();
+
+        RouteEntry routeEntry = this.routeTable.lookup(ip);
+        if (null == routeEntry) {
+            return null;
+        }
+        // Keep the next hops whose MAC address is known
+        int count = routeEntry.getNextHopCount();
+        Iface[] ifaces = new Iface[count];
+        int[] gateways = new int[count];
+        long[] macs = new long[count];
+        int resolved = 0;
+        for (int i = 0; i < count; i++) {
+            int gateway = routeEntry.getGatewayAddress(i);
+            int nextHop = (gateway != 0) ? gateway : ip;
+            long mac = this.arpCache.lookupMac(nextHop);
+            if (mac != ArpCache.NO_MAC) {
+                ifaces[resolved] = routeEntry.getInterface(i);
+                gateways[resolved] = gateway;
+                macs[resolved++] = mac;
+            } else if (this.arpResolver != null) {
+                // Start resolving it, so it is used once its address is known
+                this.arpResolver.request(nextHop, routeEntry.getInterface(i));
+            }
+        }
+        if (0 == resolved) {
+            return null;
+        }
+        if (resolved < count) {
+            ifaces = Arrays.copyOf(ifaces, resolved);
+            gateways = Arrays.copyOf(gateways, resolved);
+            macs = Arrays.copyOf(macs, resolved);
+        }
+
+        result = new Result(ip, routeGeneration, arpGeneration, ifaces, gateways, macs,
+                this.routeTable.getCounter(routeEntry));
+        this.slots.lazySet(index, result);
+        return result;
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return number of lookups that had to consult the route table
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public String toString() {
+        long hits = this.getHits();
+        long total = hits + this.getMisses();
+        return String.format("hits=%d misses=%d hitRate=%.1f%%", hits,
+                total - hits, (0 == total) ? 0.0 : 100.0 * hits / total);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable DIR-24-8 compilation of a route table. A primary table indexed
+ * by the top 24 bits of an address gives the matching entry directly, or
+ * points at a 256-slot overflow block indexed by the low 8 bits when some
+ * prefix longer than /24 falls in that range. Most lookups are one array
+ * access, and none take more than two.
+ * <p>
+ * The primary table has 2^24 slots of 4 bytes, so a compiled table costs
+ * 64 MB however few routes it holds. The entries themselves are copied into
+ * a {@link RouteStore} of the table's own, so the table holds no per-route
+ * objects.
+ */
+public class Dir248Table {
+    private static final int PRIMARY_SIZE = 1 << 24;
+    private static final int BLOCK_SIZE = 256;
+
+    /**
+     * Set in a primary slot that points at an overflow block
+     */
+    private static final int BLOCK_FLAG = 0x80000000;
+
+    /**
+     * Scratch space for batch lookups, reused by each thread across bursts
+     */
+    private static class BatchScratch {
+        int[] values = new int[0];
+    }
+
+    private static final ThreadLocal<BatchScratch> BATCH_SCRATCH = ThreadLocal.withInitial(BatchScratch::new);
+
+    /**
+     * Primary table; 0 for no route, entry slot + 1, or BLOCK_FLAG | block
+     */
+    private final int[] primary;
+
+    /**
+     * Overflow blocks, back to back; 0 for no route or entry slot + 1
+     */
+    private final int[] overflow;
+
+    private final RouteStore store;
+    private final int size;
+
+    /**
+     * Compile a set of route entries.
+     *
+     * @param routes the entries; masks are assumed to be contiguous
+     */
+    public Dir248Table(Collection<RouteEntry> routes) {
+        RouteEntry[] entries = routes.toArray(new RouteEntry[0]);
+        this.size = entries.length;
+
+        // Shorter prefixes first, so longer ones overwrite the ranges they cover
+        Arrays.sort(entries, (a, b) -> Integer.compareUnsigned(a.getMaskAddress(), b.getMaskAddress()));
+
+        this.store = new RouteStore();
+        this.primary = new int[PRIMARY_SIZE];
+        List<int[]> blocks = new ArrayList<int[]>();
+        for (RouteEntry entry : entries) {
+            int length = PrefixTrie.prefixLength(entry.getMaskAddress());
+            int prefix = entry.getDestinationAddress() & PrefixTrie.mask(length);
+            int value = this.store.add(entry) + 1;
+
+            if (length <= 24) {
+                int start = prefix >>> 8;
+                Arrays.fill(this.primary, start, start + (1 << (24 - length)), value);
+                continue;
+            }
+
+            int slot = prefix >>> 8;
+            int[] block;
+            if ((this.primary[slot] & BLOCK_FLAG) != 0) {
+                block = blocks.get(this.primary[slot] & ~BLOCK_FLAG);
+            } else {
+                // Start from whatever /24-or-shorter route covers the range
+                block = new int[BLOCK_SIZE];
+                Arrays.fill(block, this.primary[slot]);
+                this.primary[slot] = BLOCK_FLAG | blocks.size();
+                blocks.add(block);
+            }
+            int start = prefix & 0xff;
+            Arrays.fill(block, start, start + (1 << (32 - length)), value);
+        }
+
+        this.overflow = new int[blocks.size() * BLOCK_SIZE];
+        for (int i = 0; i < blocks.size(); i++) {
+            System.arraycopy(blocks.get(i), 0, this.overflow, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Find the entry with the longest prefix matching an address.
+     *
+     * @param ip IP address
+     * @return the matching entry, null if none exists
+     */
+    public RouteEntry lookup(int ip) {
+        int value = this.primary[ip >>> 8];
+        if ((value & BLOCK_FLAG) != 0) {
+            value = this.overflow[((value & ~BLOCK_FLAG) * BLOCK_SIZE) + (ip & 0xff)];
+        }
+        return (0 == value) ? null : this.store.get(value - 1);
+    }
+
+    /**
+     * Find the entries with the longest prefixes matching a burst of
+     * addresses. All primary slots are read before any overflow block, so
+     * the independent loads can overlap.
+     *
+     * @param ips   IP addresses
+     * @param count number of addresses to look up
+     * @param out   filled with the matching entries, null where none exists
+     */
+    public void lookupBatch(int[] ips, int count, RouteEntry[] out) {
+        int[] primary = this.primary;
+        int[] overflow = this.overflow;
+        RouteStore store = this.store;
+        BatchScratch scratch = BATCH_SCRATCH.get();
+        if (scratch.values.length < count) {
+            scratch.values = new int[count];
+        }
+        int[] values = scratch.values;
+        for (int i = 0; i < count; i++) {
+            values[i] = primary[ips[i] >>> 8];
+        }
+        for (int i = 0; i < count; i++) {
+            int value = values[i];
+            if ((value & BLOCK_FLAG) != 0) {
+                value = overflow[((value & ~BLOCK_FLAG) * BLOCK_SIZE) + (ips[i] & 0xff)];
+            }
+            out[i] = (0 == value) ? null : store.get(value - 1);
+        }
+    }
+
+    /**
+     * @return number of entries compiled
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return number of overflow blocks
+     */
+    public int getBlocks() {
+        return this.overflow.length / BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,164 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how many ICMP errors the router generates, both towards any one
+ * source and in total, so a traceroute sweep or a routing blackhole cannot
+ * turn the router into an ICMP amplifier. Per-source buckets live in a
+ * fixed-size, set-associative table. A new source only takes a way of its
+ * set that is empty or whose bucket has refilled completely; when the set
+ * is busy it shares a bucket with a source already there, so sources
+ * colliding in a set are limited together rather than each getting a fresh
+ * burst.
+ */
+public class IcmpRateLimiter {
+    /**
+     * ICMP errors per second allowed towards one source
+     */
+    public static final double SOURCE_RATE = 10;
+    public static final int SOURCE_BURST = 10;
+
+    /**
+     * ICMP errors per second allowed in total
+     */
+    public static final double GLOBAL_RATE = 1000;
+    public static final int GLOBAL_BURST = 50;
+
+    /**
+     * Number of per-source buckets; a power of two
+     */
+    public static final int SOURCE_SLOTS = 1024;
+
+    /**
+     * Buckets in each set of the table; a power of two
+     */
+    public static final int SOURCE_WAYS = 4;
+
+    /**
+     * Bucket for one source address
+     */
+    private static class SourceBucket extends TokenBucket {
+        final int source;
+
+        SourceBucket(int source, double ratePerSecond, int burst, long now) {
+            super(ratePerSecond, burst, now);
+            this.source = source;
+        }
+    }
+
+    private final double sourceRate;
+    private final int sourceBurst;
+    private final AtomicReferenceArray<SourceBucket> sources;
+    private final TokenBucket global;
+
+    /* Metrics */
+    private final LongAdder allowed;
+    private final LongAdder limitedBySource;
+    private final LongAdder limitedGlobally;
+
+    /**
+     * Create a limiter with the default rates.
+     */
+    public IcmpRateLimiter() {
+        this(SOURCE_RATE, SOURCE_BURST, GLOBAL_RATE, GLOBAL_BURST);
+    }
+
+    /**
+     * @param sourceRate  ICMP errors per second allowed towards one source
+     * @param sourceBurst ICMP errors allowed back to back towards one source
+     * @param globalRate  ICMP errors per second allowed in total
+     * @param globalBurst ICMP errors allowed back to back in total
+     */
+    public IcmpRateLimiter(double sourceRate, int sourceBurst, double globalRate, int globalBurst) {
+        this.sourceRate = sourceRate;
+        this.sourceBurst = sourceBurst;
+        this.sources = new AtomicReferenceArray<SourceBucket>(SOURCE_SLOTS);
+        this.global = new TokenBucket(globalRate, globalBurst, System.nanoTime());
+        this.allowed = new LongAdder();
+        this.limitedBySource = new LongAdder();
+        this.limitedGlobally = new LongAdder();
+    }
+
+    /**
+     * Decide whether an ICMP error may be sent to a source.
+     *
+     * @param source IP address the error would be sent to
+     * @return true if the error may be sent
+     */
+    public boolean allow(int source) {
+        long now = System.nanoTime();
+        SourceBucket bucket = this.bucketFor(source, now);
+        if (!bucket.hasToken(now)) {
+            this.limitedBySource.increment();
+            return false;
+        }
+        // Charge the source only once the global bucket lets the error through
+        if (!this.global.tryAcquire(now)) {
+            this.limitedGlobally.increment();
+            return false;
+        }
+        if (!bucket.tryAcquire(now)) {
+            // Another thread took the source's last token in between
+            this.limitedBySource.increment();
+            return false;
+        }
+        this.allowed.increment();
+        return true;
+    }
+
+    private SourceBucket bucketFor(int source, long now) {
+        int h = hash(source);
+        int base = (h & (SOURCE_SLOTS / SOURCE_WAYS - 1)) * SOURCE_WAYS;
+        int free = -1;
+        SourceBucket idle = null;
+        for (int i = base; i < base + SOURCE_WAYS; i++) {
+            SourceBucket bucket = this.sources.get(i);
+            if (null == bucket) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (bucket.source == source) {
+                return bucket;
+            } else if (free < 0 && null == idle && bucket.isFull(now)) {
+                free = i;
+                idle = bucket;
+            }
+        }
+        if (free >= 0) {
+            SourceBucket bucket = new SourceBucket(source, this.sourceRate, this.sourceBurst, now);
+            if (this.sources.compareAndSet(free, idle, bucket)) {
+                return bucket;
+            }
+            // Lost the way to another thread; slots are never emptied, so share its bucket
+            return this.sources.get(free);
+        }
+        // The set is busy: share a bucket instead of handing out a fresh burst
+        return this.sources.get(base + ((h >>> 24) & (SOURCE_WAYS - 1)));
+    }
+
+    /**
+     * @return number of ICMP errors let through
+     */
+    public long getAllowed() {
+        return this.allowed.sum();
+    }
+
+    /**
+     * @return number of ICMP errors suppressed, for any reason
+     */
+    public long getSuppressed() {
+        return this.limitedBySource.sum() + this.limitedGlobally.sum();
+    }
+
+    public String toString() {
+        return String.format("allowed=%d limitedBySource=%d limitedGlobally=%d",
+                this.getAllowed(), this.limitedBySource.sum(), this.limitedGlobally.sum());
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
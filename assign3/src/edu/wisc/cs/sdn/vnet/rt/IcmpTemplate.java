@@ -0,0 +1,105 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Builds ICMP error frames directly in wire format from a preallocated
+ * template, instead of assembling an Ethernet/IPv4/ICMP/Data object tree
+ * and serializing it. The quoted header is copied straight from the bytes
+ * of the offending packet.
+ */
+public class IcmpTemplate {
+    /**
+     * Room left in front of the frame for the VNS command header, so the
+     * frame can be sent without being copied again
+     */
+    public static final int FRAME_OFFSET = CommandPacket.HEADER_SIZE;
+
+    /**
+     * Bytes of the offending packet's payload quoted after its IP header
+     */
+    public static final int QUOTED_PAYLOAD = 8;
+
+    private static final int ETHER_HEADER = 14;
+    private static final int IP_HEADER = 20;
+    private static final int ICMP_HEADER = 8;
+
+    /**
+     * Ethernet and IPv4 headers with every field that never changes filled in
+     */
+    private static final byte[] TEMPLATE = new byte[ETHER_HEADER + IP_HEADER];
+
+    static {
+        TEMPLATE[12] = (byte) (Ethernet.TYPE_IPv4 >> 8);
+        TEMPLATE[13] = (byte) Ethernet.TYPE_IPv4;
+        TEMPLATE[ETHER_HEADER] = 0x45;
+        TEMPLATE[ETHER_HEADER + 8] = 64;
+        TEMPLATE[ETHER_HEADER + 9] = IPv4.PROTOCOL_ICMP;
+    }
+
+    private IcmpTemplate() {
+    }
+
+    /**
+     * Build an ICMP error frame.
+     *
+     * @param outIface  interface the error is sent out of; supplies the source
+     *                  MAC and IP addresses
+     * @param dstMac    MAC address of the next hop towards the destination
+     * @param dstIp     IP address the error is sent to
+     * @param type      ICMP type
+     * @param code      ICMP code
+     * @param packet    buffer holding the offending IPv4 packet
+     * @param ipOffset  offset of the IPv4 header in the buffer
+     * @param ipLength  bytes of the IPv4 packet available in the buffer
+     * @return the frame, starting at {@link #FRAME_OFFSET}
+     */
+    public static byte[] build(Iface outIface, byte[] dstMac, int dstIp, byte type, byte code,
+                               byte[] packet, int ipOffset, int ipLength) {
+        int headerLength = (packet[ipOffset] & 0xf) * 4;
+        int quoted = Math.min(ipLength, headerLength + QUOTED_PAYLOAD);
+        int icmpLength = ICMP_HEADER + quoted;
+
+        byte[] frame = new byte[FRAME_OFFSET + ETHER_HEADER + IP_HEADER + icmpLength];
+        int f = FRAME_OFFSET;
+        System.arraycopy(TEMPLATE, 0, frame, f, TEMPLATE.length);
+
+        // Ethernet header
+        System.arraycopy(dstMac, 0, frame, f, MACAddress.MAC_ADDRESS_LENGTH);
+        System.arraycopy(outIface.getMacAddress().toBytes(), 0, frame,
+                f + MACAddress.MAC_ADDRESS_LENGTH, MACAddress.MAC_ADDRESS_LENGTH);
+
+        // IPv4 header
+        int ip = f + ETHER_HEADER;
+        putShort(frame, ip + 2, (short) (IP_HEADER + icmpLength));
+        putInt(frame, ip + 12, outIface.getIpAddress());
+        putInt(frame, ip + 16, dstIp);
+        putShort(frame, ip + 10, IPv4.computeChecksum(frame, ip, IP_HEADER));
+
+        // ICMP header, unused word and quoted packet
+        int icmp = ip + IP_HEADER;
+        frame[icmp] = type;
+        frame[icmp + 1] = code;
+        System.arraycopy(packet, ipOffset, frame, icmp + ICMP_HEADER, quoted);
+        putShort(frame, icmp + 2, IPv4.computeChecksum(frame, icmp, icmpLength));
+
+        return frame;
+    }
+
+    private static void putShort(byte[] data, int offset, short value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,197 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open-addressing hash map from int keys to long values, with no boxing and
+ * no per-entry objects. Reads never lock or allocate; writes are serialized
+ * on the map. Key 0 cannot be stored, since it marks an empty slot.
+ * <p>
+ * A slot's value is written before its key, so a reader that finds a key
+ * also finds its value. Removing a key leaves it in its slot with the value
+ * {@link #ABSENT}, to be reused if the key comes back; the table is rebuilt
+ * into a new array once used slots reach half its capacity, and readers
+ * still on the old array see it as it was.
+ */
+public class IntLongMap {
+    /**
+     * Value returned for keys that are not in the map; cannot be stored
+     */
+    public static final long ABSENT = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Visits the entries of a map.
+     */
+    public interface Visitor {
+        void visit(int key, long value);
+    }
+
+    private static class Table {
+        final AtomicIntegerArray keys;
+        final AtomicLongArray values;
+        final int mask;
+
+        /**
+         * Slots holding a key, present or removed; changed only by writers
+         */
+        int used;
+
+        Table(int capacity) {
+            this.keys = new AtomicIntegerArray(capacity);
+            this.values = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+
+    /**
+     * Create an empty map.
+     */
+    public IntLongMap() {
+        this.table = new Table(MIN_CAPACITY);
+    }
+
+    /**
+     * @param key a key
+     * @return the value for the key; ABSENT if there is none
+     */
+    public long get(int key) {
+        Table t = this.table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            int k = t.keys.get(i);
+            // Checked first, so key 0 is never matched against an empty slot
+            if (0 == k) {
+                return ABSENT;
+            }
+            if (k == key) {
+                return t.values.get(i);
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    /**
+     * @param key   a key other than 0
+     * @param value value for the key; not ABSENT
+     * @return the previous value for the key; ABSENT if there was none
+     */
+    public synchronized long put(int key, long value) {
+        if (0 == key || ABSENT == value) {
+            throw new IllegalArgumentException("cannot store key " + key + " with value " + value);
+        }
+        Table t = this.table;
+        int i = find(t, key);
+        if (t.keys.get(i) == key) {
+            long old = t.values.getAndSet(i, value);
+            if (ABSENT == old) {
+                this.size++;
+            }
+            return old;
+        }
+
+        if ((t.used + 1) * 2 > t.mask + 1) {
+            t = this.rebuild(t);
+            i = find(t, key);
+        }
+        t.values.set(i, value);
+        t.keys.set(i, key);
+        t.used++;
+        this.size++;
+        return ABSENT;
+    }
+
+    /**
+     * @param key a key
+     * @return the value removed; ABSENT if there was none
+     */
+    public synchronized long remove(int key) {
+        if (0 == key) {
+            return ABSENT;
+        }
+        Table t = this.table;
+        int i = find(t, key);
+        if (t.keys.get(i) != key) {
+            return ABSENT;
+        }
+        long old = t.values.getAndSet(i, ABSENT);
+        if (old != ABSENT) {
+            this.size--;
+        }
+        return old;
+    }
+
+    /**
+     * @return number of keys in the map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Visit every entry. Entries changed during the visit may or may not be
+     * seen.
+     *
+     * @param visitor called with each key and value
+     */
+    public void forEach(Visitor visitor) {
+        Table t = this.table;
+        for (int i = 0; i <= t.mask; i++) {
+            int key = t.keys.get(i);
+            if (key != 0) {
+                long value = t.values.get(i);
+                if (value != ABSENT) {
+                    visitor.visit(key, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the present entries into a new table sized for them, and publish
+     * it.
+     */
+    private Table rebuild(Table old) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (this.size + 1) * 4) {
+            capacity <<= 1;
+        }
+        Table t = new Table(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            int key = old.keys.get(i);
+            long value = old.values.get(i);
+            if (key != 0 && value != ABSENT) {
+                int j = find(t, key);
+                t.values.set(j, value);
+                t.keys.set(j, key);
+                t.used++;
+            }
+        }
+        this.table = t;
+        return t;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+    private static int find(Table t, int key) {
+        int i = hash(key) & t.mask;
+        while (true) {
+            int k = t.keys.get(i);
+            if (k == key || 0 == k) {
+                return i;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,105 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with power-of-two buckets: bucket 0
+ * counts durations of 0, and bucket i counts those from 2^(i-1) up to but
+ * not including 2^i.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of buckets; enough for any non-negative long
+     */
+    public static final int BUCKETS = 64;
+
+    /**
+     * Counts copied from a histogram at one point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return number of durations recorded
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @param bucket index of a bucket
+         * @return number of durations recorded in the bucket
+         */
+        public long getCount(int bucket) {
+            return this.counts[bucket];
+        }
+
+        /**
+         * @param fraction fraction of durations, from 0 to 1
+         * @return upper bound in nanoseconds of the bucket holding that
+         * fraction of the durations; 0 if none were recorded
+         */
+        public long getPercentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * this.count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.counts[i];
+                if (seen > 0 && seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        public String toString() {
+            return String.format("samples=%d p50<%dns p90<%dns p99<%dns max<%dns", this.count,
+                    this.getPercentile(0.5), this.getPercentile(0.9), this.getPercentile(0.99),
+                    this.getPercentile(1.0));
+        }
+    }
+
+    private final LongAdder[] buckets;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds; negative durations count as 0
+     */
+    public void record(long nanos) {
+        this.buckets[bucket(nanos)].increment();
+    }
+
+    /**
+     * @return the counts recorded so far
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return new Snapshot(counts);
+    }
+
+    private static int bucket(long nanos) {
+        return (nanos <= 0) ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    private static long upperBound(int bucket) {
+        return (bucket >= 63) ? Long.MAX_VALUE : 1L << bucket;
+    }
+}
@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Collection;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Immutable index of the IP and MAC addresses that belong to a router's
+ * interfaces. Both are open-addressing hash sets of primitives, so checking
+ * whether a packet is addressed to the router costs a single probe in the
+ * common case instead of a scan over every interface.
+ */
+public class LocalAddressIndex {
+    /**
+     * Marks an empty slot; 0 is never a valid interface address
+     */
+    private static final int EMPTY_IP = 0;
+    private static final long EMPTY_MAC = 0L;
+
+    private final int[] ips;
+    private final int ipMask;
+    private final long[] macs;
+    private final int macMask;
+
+    /**
+     * Build the index from a router's interfaces.
+     *
+     * @param interfaces the router's interfaces
+     */
+    public LocalAddressIndex(Collection<Iface> interfaces) {
+        int size = tableSize(interfaces.size());
+        this.ips = new int[size];
+        this.ipMask = size - 1;
+        this.macs = new long[size];
+        this.macMask = size - 1;
+
+        for (var iface : interfaces) {
+            if (iface.getIpAddress() != EMPTY_IP) {
+                addIp(iface.getIpAddress());
+            }
+            if (iface.getMacAddress() != null && iface.getMacAddress().toLong() != EMPTY_MAC) {
+                addMac(iface.getMacAddress().toLong());
+            }
+        }
+    }
+
+    /**
+     * @param ip IP address
+     * @return true if the address belongs to one of the router's interfaces
+     */
+    public boolean containsIp(int ip) {
+        if (ip == EMPTY_IP) {
+            return false;
+        }
+        for (int i = hash(ip) & ipMask; ; i = (i + 1) & ipMask) {
+            int slot = ips[i];
+            if (slot == ip) {
+                return true;
+            }
+            if (slot == EMPTY_IP) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param mac MAC address in the lower 48 bits
+     * @return true if the address belongs to one of the router's interfaces
+     */
+    public boolean containsMac(long mac) {
+        if (mac == EMPTY_MAC) {
+            return false;
+        }
+        for (int i = hash(mac) & macMask; ; i = (i + 1) & macMask) {
+            long slot = macs[i];
+            if (slot == mac) {
+                return true;
+            }
+            if (slot == EMPTY_MAC) {
+                return false;
+            }
+        }
+    }
+
+    private void addIp(int ip) {
+        int i = hash(ip) & ipMask;
+        while (ips[i] != EMPTY_IP && ips[i] != ip) {
+            i = (i + 1) & ipMask;
+        }
+        ips[i] = ip;
+    }
+
+    private void addMac(long mac) {
+        int i = hash(mac) & macMask;
+        while (macs[i] != EMPTY_MAC && macs[i] != mac) {
+            i = (i + 1) & macMask;
+        }
+        macs[i] = mac;
+    }
+
+    /**
+     * @return a power of two with room for twice the given number of entries,
+     * so there is always an empty slot to end a probe
+     */
+    private static int tableSize(int entries) {
+        int size = 4;
+        while (size < entries * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(long key) {
+        return hash((int) (key ^ (key >>> 32)));
+    }
+}
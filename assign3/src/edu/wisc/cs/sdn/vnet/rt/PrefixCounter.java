@@ -0,0 +1,127 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Packets and bytes forwarded using one route table prefix. Counts are
+ * striped, so worker threads forwarding along the same prefix do not
+ * contend on one cache line.
+ */
+public class PrefixCounter {
+    /**
+     * Counts copied from a counter at one point in time.
+     */
+    public static class Snapshot {
+        private final int destinationAddress;
+        private final int maskAddress;
+        private final long packets;
+        private final long bytes;
+
+        private Snapshot(int destinationAddress, int maskAddress, long packets, long bytes) {
+            this.destinationAddress = destinationAddress;
+            this.maskAddress = maskAddress;
+            this.packets = packets;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return prefix address
+         */
+        public int getDestinationAddress() {
+            return this.destinationAddress;
+        }
+
+        /**
+         * @return subnet mask
+         */
+        public int getMaskAddress() {
+            return this.maskAddress;
+        }
+
+        /**
+         * @return number of packets forwarded
+         */
+        public long getPackets() {
+            return this.packets;
+        }
+
+        /**
+         * @return number of bytes forwarded
+         */
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        public String toString() {
+            return String.format("%s/%d packets=%d bytes=%d", IPv4.fromIPv4Address(this.destinationAddress),
+                    PrefixTrie.prefixLength(this.maskAddress), this.packets, this.bytes);
+        }
+    }
+
+    private final int destinationAddress;
+    private final int maskAddress;
+    private final LongAdder packets;
+    private final LongAdder bytes;
+
+    /**
+     * @param destinationAddress prefix address
+     * @param maskAddress        subnet mask
+     */
+    public PrefixCounter(int destinationAddress, int maskAddress) {
+        this.destinationAddress = destinationAddress & maskAddress;
+        this.maskAddress = maskAddress;
+        this.packets = new LongAdder();
+        this.bytes = new LongAdder();
+    }
+
+    /**
+     * Count one forwarded packet.
+     *
+     * @param length length of the packet in bytes
+     */
+    public void record(int length) {
+        this.packets.increment();
+        this.bytes.add(length);
+    }
+
+    /**
+     * @return prefix address
+     */
+    public int getDestinationAddress() {
+        return this.destinationAddress;
+    }
+
+    /**
+     * @return subnet mask
+     */
+    public int getMaskAddress() {
+        return this.maskAddress;
+    }
+
+    /**
+     * @return number of packets forwarded
+     */
+    public long getPackets() {
+        return this.packets.sum();
+    }
+
+    /**
+     * @return number of bytes forwarded
+     */
+    public long getBytes() {
+        return this.bytes.sum();
+    }
+
+    /**
+     * @return the counts so far
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this.destinationAddress, this.maskAddress, this.getPackets(), this.getBytes());
+    }
+
+    public String toString() {
+        return this.snapshot().toString();
+    }
+}
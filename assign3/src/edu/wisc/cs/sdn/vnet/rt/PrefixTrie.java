@@ -0,0 +1,490 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Path-compressed binary (Patricia) trie mapping IPv4 prefixes to route
+ * entries. Every node holds a prefix and its length; a child extends its
+ * parent's prefix by at least one bit, and nodes that neither hold an entry
+ * nor branch are never kept. A longest-prefix-match lookup therefore visits
+ * at most 33 nodes however many prefixes are stored.
+ * <p>
+ * A trie is immutable once built, so any number of threads may read it
+ * without locking. Changes go through an {@link Editor}, which copies only
+ * the nodes on the paths it changes and shares everything else with the
+ * trie it started from.
+ * <p>
+ * Nodes hold only the slot of their entry in a {@link RouteStore} shared by
+ * every trie edited from the same original, so a stored route costs one
+ * node rather than several objects. Slots of replaced entries are reclaimed
+ * by copying the live entries to new storage once they make up less than
+ * half of it.
+ */
+public class PrefixTrie {
+    private static class Node {
+        final int prefix;
+        final int length;
+
+        /**
+         * Slot of the entry in the trie's storage; NONE if there is none
+         */
+        int entry;
+        Node left;
+        Node right;
+
+        /**
+         * Editor that created the node and may still change it
+         */
+        Editor owner;
+
+        Node(int prefix, int length, int entry, Editor owner) {
+            this.prefix = prefix;
+            this.length = length;
+            this.entry = entry;
+            this.owner = owner;
+        }
+
+        Node child(int bit) {
+            return (0 == bit) ? this.left : this.right;
+        }
+
+        void setChild(int bit, Node node) {
+            if (0 == bit) {
+                this.left = node;
+            } else {
+                this.right = node;
+            }
+        }
+
+        int childCount() {
+            return ((this.left != null) ? 1 : 0) + ((this.right != null) ? 1 : 0);
+        }
+
+        Node onlyChild() {
+            return (this.left != null) ? this.left : this.right;
+        }
+    }
+
+    /**
+     * Builds a new trie from an existing one. Not thread-safe; the trie it
+     * started from is never changed.
+     */
+    public static class Editor {
+        private final RouteStore store;
+        private Node root;
+        private int size;
+        private int slots;
+        private boolean changed;
+
+        private Editor(PrefixTrie base) {
+            this.store = base.store;
+            this.root = base.root;
+            this.size = base.size;
+            this.slots = base.slots;
+        }
+
+        /**
+         * @return the node itself if this editor created it, otherwise a copy
+         * this editor may change
+         */
+        private Node own(Node node) {
+            if (node.owner == this) {
+                return node;
+            }
+            Node copy = new Node(node.prefix, node.length, node.entry, this);
+            copy.left = node.left;
+            copy.right = node.right;
+            return copy;
+        }
+
+        /**
+         * Find the entry stored for exactly a prefix, including changes made
+         * through this editor.
+         *
+         * @param prefix prefix address
+         * @param length prefix length
+         * @return the entry, null if none exists
+         */
+        public RouteEntry get(int prefix, int length) {
+            return entry(this.store, PrefixTrie.get(this.root, prefix, length));
+        }
+
+        /**
+         * Store an entry for a prefix, replacing any entry already stored for
+         * it.
+         *
+         * @param prefix prefix address; bits beyond the length are ignored
+         * @param length prefix length
+         * @param entry  entry to store
+         * @return the entry replaced, null if there was none
+         */
+        public RouteEntry put(int prefix, int length, RouteEntry entry) {
+            return entry(this.store, this.put(prefix, length, this.store.add(entry)));
+        }
+
+        /**
+         * Store an entry with one next hop for the prefix of its destination
+         * and mask, replacing any entry already stored for it. Unlike
+         * {@link #put(int, int, RouteEntry)}, no entry object is created.
+         *
+         * @param destinationAddress destination IP address
+         * @param maskAddress        subnet mask; assumed to be contiguous
+         * @param gatewayAddress     gateway IP address
+         * @param iface              router interface
+         * @return the entry replaced, null if there was none
+         */
+        public RouteEntry put(int destinationAddress, int maskAddress, int gatewayAddress, Iface iface) {
+            int slot = this.store.add(destinationAddress, maskAddress, gatewayAddress, iface);
+            return entry(this.store, this.put(destinationAddress, prefixLength(maskAddress), slot));
+        }
+
+        private int put(int prefix, int length, int entry) {
+            prefix &= mask(length);
+            this.changed = true;
+            this.slots += this.store.getNextHopCount(entry);
+            this.root = this.own(this.root);
+            Node node = this.root;
+            while (true) {
+                if (node.length == length) {
+                    int old = node.entry;
+                    node.entry = entry;
+                    if (NONE == old) {
+                        this.size++;
+                    } else {
+                        this.slots -= this.store.getNextHopCount(old);
+                    }
+                    return old;
+                }
+
+                int b = bit(prefix, node.length);
+                Node child = node.child(b);
+                if (null == child) {
+                    node.setChild(b, new Node(prefix, length, entry, this));
+                    this.size++;
+                    return NONE;
+                }
+
+                int common = commonLength(prefix, child.prefix, Math.min(length, child.length));
+                if (common == child.length) {
+                    child = this.own(child);
+                    node.setChild(b, child);
+                    node = child;
+                    continue;
+                }
+
+                Node added;
+                if (common == length) {
+                    // New prefix sits between the node and its child
+                    added = new Node(prefix, length, entry, this);
+                    added.setChild(bit(child.prefix, length), child);
+                } else {
+                    // Prefixes diverge below the node; branch where they split
+                    added = new Node(prefix & mask(common), common, NONE, this);
+                    added.setChild(bit(prefix, common), new Node(prefix, length, entry, this));
+                    added.setChild(bit(child.prefix, common), child);
+                }
+                node.setChild(b, added);
+                this.size++;
+                return NONE;
+            }
+        }
+
+        /**
+         * Remove the entry stored for exactly a prefix.
+         *
+         * @param prefix prefix address
+         * @param length prefix length
+         * @return the entry removed, null if there was none
+         */
+        public RouteEntry remove(int prefix, int length) {
+            prefix &= mask(length);
+            if (NONE == PrefixTrie.get(this.root, prefix, length)) {
+                return null;
+            }
+
+            // Copy the path down to the node; it is known to exist
+            this.changed = true;
+            this.root = this.own(this.root);
+            Node grandparent = null;
+            Node parent = null;
+            Node node = this.root;
+            while (node.length < length) {
+                int b = bit(prefix, node.length);
+                Node child = this.own(node.child(b));
+                node.setChild(b, child);
+                grandparent = parent;
+                parent = node;
+                node = child;
+            }
+
+            RouteEntry old = entry(this.store, node.entry);
+            this.slots -= this.store.getNextHopCount(node.entry);
+            node.entry = NONE;
+            this.size--;
+            if (node == this.root) {
+                return old;
+            }
+
+            // Drop nodes that no longer hold an entry or branch
+            int count = node.childCount();
+            if (count >= 2) {
+                return old;
+            }
+            replaceChild(parent, node, (1 == count) ? node.onlyChild() : null);
+            if (0 == count && parent != this.root && NONE == parent.entry && parent.childCount() == 1) {
+                replaceChild(grandparent, parent, parent.onlyChild());
+            }
+            return old;
+        }
+
+        /**
+         * @return true if put or remove changed anything
+         */
+        public boolean isChanged() {
+            return this.changed;
+        }
+
+        /**
+         * Finish editing. The editor must not be used afterwards.
+         *
+         * @return the new trie
+         */
+        public PrefixTrie build() {
+            PrefixTrie trie;
+            if (this.store.size() - this.slots > this.slots + COMPACT_SLACK) {
+                // Mostly replaced entries; copy the live ones to new storage
+                RouteStore compacted = new RouteStore();
+                trie = new PrefixTrie(compacted, this.copy(this.root, compacted), this.size, this.slots);
+            } else {
+                trie = new PrefixTrie(this.store, this.root, this.size, this.slots);
+            }
+            this.root = null;
+            return trie;
+        }
+
+        private Node copy(Node node, RouteStore to) {
+            if (null == node) {
+                return null;
+            }
+            int entry = (NONE == node.entry) ? NONE : to.add(this.store.get(node.entry));
+            Node copy = new Node(node.prefix, node.length, entry, this);
+            copy.left = this.copy(node.left, to);
+            copy.right = this.copy(node.right, to);
+            return copy;
+        }
+    }
+
+    /**
+     * Node entry when the node holds no entry
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Unused slots tolerated beyond the number in use before compacting
+     */
+    private static final int COMPACT_SLACK = 1 << 16;
+
+    /**
+     * Scratch space for batch lookups, reused by each thread across bursts
+     */
+    private static class BatchScratch {
+        Node[] nodes = new Node[0];
+        int[] best = new int[0];
+    }
+
+    private static final ThreadLocal<BatchScratch> BATCH_SCRATCH = ThreadLocal.withInitial(BatchScratch::new);
+
+    private final RouteStore store;
+
+    /**
+     * Root holds the zero-length prefix, so it always exists
+     */
+    private final Node root;
+    private final int size;
+
+    /**
+     * Number of storage slots used by the entries
+     */
+    private final int slots;
+
+    /**
+     * Create an empty trie.
+     */
+    public PrefixTrie() {
+        this(new RouteStore(), new Node(0, 0, NONE, null), 0, 0);
+    }
+
+    private PrefixTrie(RouteStore store, Node root, int size, int slots) {
+        this.store = store;
+        this.root = root;
+        this.size = size;
+        this.slots = slots;
+    }
+
+    /**
+     * @return an editor for building a changed copy of this trie
+     */
+    public Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * @param mask subnet mask; assumed to be contiguous
+     * @return number of leading one bits in the mask
+     */
+    public static int prefixLength(int mask) {
+        return Integer.bitCount(mask);
+    }
+
+    /**
+     * @param length prefix length
+     * @return subnet mask with the given number of leading one bits
+     */
+    public static int mask(int length) {
+        return (0 == length) ? 0 : -1 << (32 - length);
+    }
+
+    /**
+     * Find the entry with the longest prefix matching an address.
+     *
+     * @param ip IP address
+     * @return the matching entry, null if none exists
+     */
+    public RouteEntry lookup(int ip) {
+        int best = NONE;
+        Node node = this.root;
+        while (node != null && ((ip ^ node.prefix) & mask(node.length)) == 0) {
+            if (node.entry != NONE) {
+                best = node.entry;
+            }
+            if (32 == node.length) {
+                break;
+            }
+            node = node.child(bit(ip, node.length));
+        }
+        return entry(this.store, best);
+    }
+
+    /**
+     * Find the entries with the longest prefixes matching a burst of
+     * addresses. The lookups walk down the trie in lockstep, one level per
+     * pass, so the loads for different addresses are independent and can
+     * overlap, and the upper levels stay cached across the burst.
+     *
+     * @param ips   IP addresses
+     * @param count number of addresses to look up
+     * @param out   filled with the matching entries, null where none exists
+     */
+    public void lookupBatch(int[] ips, int count, RouteEntry[] out) {
+        BatchScratch scratch = BATCH_SCRATCH.get();
+        if (scratch.nodes.length < count) {
+            scratch.nodes = new Node[count];
+            scratch.best = new int[count];
+        }
+        // Every node slot is back to null when the walk ends, so no trie is kept alive
+        Node[] nodes = scratch.nodes;
+        int[] best = scratch.best;
+        for (int i = 0; i < count; i++) {
+            nodes[i] = this.root;
+            best[i] = NONE;
+        }
+        int active = count;
+        while (active > 0) {
+            active = 0;
+            for (int i = 0; i < count; i++) {
+                Node node = nodes[i];
+                if (null == node) {
+                    continue;
+                }
+                int ip = ips[i];
+                if (((ip ^ node.prefix) & mask(node.length)) != 0) {
+                    nodes[i] = null;
+                    continue;
+                }
+                if (node.entry != NONE) {
+                    best[i] = node.entry;
+                }
+                node = (32 == node.length) ? null : node.child(bit(ip, node.length));
+                nodes[i] = node;
+                if (node != null) {
+                    active++;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            out[i] = entry(this.store, best[i]);
+        }
+    }
+
+    /**
+     * Find the entry stored for exactly a prefix.
+     *
+     * @param prefix prefix address
+     * @param length prefix length
+     * @return the entry, null if none exists
+     */
+    public RouteEntry get(int prefix, int length) {
+        return entry(this.store, get(this.root, prefix, length));
+    }
+
+    /**
+     * @return number of prefixes stored
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Add every entry to a list, in order of prefix address and then length.
+     *
+     * @param out list the entries are added to
+     */
+    public void collect(List<RouteEntry> out) {
+        this.collect(this.root, out);
+    }
+
+    private void collect(Node node, List<RouteEntry> out) {
+        if (null == node) {
+            return;
+        }
+        if (node.entry != NONE) {
+            out.add(this.store.get(node.entry));
+        }
+        this.collect(node.left, out);
+        this.collect(node.right, out);
+    }
+
+    private static RouteEntry entry(RouteStore store, int slot) {
+        return (NONE == slot) ? null : store.get(slot);
+    }
+
+    private static int get(Node node, int prefix, int length) {
+        prefix &= mask(length);
+        while (node != null && node.length <= length
+                && ((prefix ^ node.prefix) & mask(node.length)) == 0) {
+            if (node.length == length) {
+                return node.entry;
+            }
+            node = node.child(bit(prefix, node.length));
+        }
+        return NONE;
+    }
+
+    private static void replaceChild(Node parent, Node child, Node replacement) {
+        if (parent.left == child) {
+            parent.left = replacement;
+        } else {
+            parent.right = replacement;
+        }
+    }
+
+    private static int bit(int ip, int index) {
+        return (ip >>> (31 - index)) & 1;
+    }
+
+    private static int commonLength(int a, int b, int max) {
+        return Math.min(max, Integer.numberOfLeadingZeros(a ^ b));
+    }
+}
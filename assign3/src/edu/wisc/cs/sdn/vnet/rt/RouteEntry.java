@@ -4,78 +4,199 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. An entry may have several equal-cost next hops
+ * (gateway and interface pairs); the first is its primary next hop. Entries
+ * are immutable views of a slot in a {@link RouteStore}.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
-public class RouteEntry 
+public class RouteEntry
 {
-	/** Destination IP address */
-	private int destinationAddress;
-	
-	/** Gateway IP address */
-	private int gatewayAddress;
-	
-	/** Subnet mask */
-	private int maskAddress;
-	
-	/** Router interface out which packets should be sent to reach
-	 * the destination or gateway */
-	private Iface iface;
-	
+	/** Storage holding the entry */
+	private final RouteStore store;
+
+	/** Slot of the entry in the storage */
+	private final int slot;
+
+	/** Chunk holding the entry's slots, and the offset of the first */
+	private final RouteStore.Chunk chunk;
+	private final int offset;
+
 	/**
 	 * Create a new route table entry.
 	 * @param destinationAddress destination IP address
 	 * @param gatewayAddress gateway IP address
 	 * @param maskAddress subnet mask
-	 * @param iface the router interface out which packets should 
+	 * @param iface the router interface out which packets should
 	 *        be sent to reach the destination or gateway
 	 */
-	public RouteEntry(int destinationAddress, int gatewayAddress, 
+	public RouteEntry(int destinationAddress, int gatewayAddress,
 			int maskAddress, Iface iface)
 	{
-		this.destinationAddress = destinationAddress;
-		this.gatewayAddress = gatewayAddress;
-		this.maskAddress = maskAddress;
-		this.iface = iface;
+		this(RouteStore.of(destinationAddress, maskAddress,
+				new int[] { gatewayAddress }, new Iface[] { iface }), 0);
+	}
+
+	private RouteEntry(RouteStore store, int slot)
+	{
+		this(store, slot, store.chunkOf(slot), store.offsetOf(slot));
 	}
-	
+
+	RouteEntry(RouteStore store, int slot, RouteStore.Chunk chunk, int offset)
+	{
+		this.store = store;
+		this.slot = slot;
+		this.chunk = chunk;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return storage holding the entry
+	 */
+	RouteStore getStore()
+	{ return this.store; }
+
+	/**
+	 * @return slot of the entry in its storage
+	 */
+	int getSlot()
+	{ return this.slot; }
+
 	/**
 	 * @return destination IP address
 	 */
 	public int getDestinationAddress()
-	{ return this.destinationAddress; }
-	
+	{ return this.chunk.destinations[this.offset]; }
+
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address of the primary next hop
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
+	{ return this.chunk.gateways[this.offset]; }
 
-	public void setGatewayAddress(int gatewayAddress)
-	{ this.gatewayAddress = gatewayAddress; }
-	
 	/**
-	 * @return subnet mask 
+	 * @return subnet mask
 	 */
 	public int getMaskAddress()
-	{ return this.maskAddress; }
-	
+	{ return this.chunk.masks[this.offset]; }
+
 	/**
-	 * @return the router interface out which packets should be sent to 
-	 *         reach the destination or gateway
+	 * @return the router interface out which packets should be sent to
+	 *         reach the destination or gateway of the primary next hop
 	 */
 	public Iface getInterface()
-	{ return this.iface; }
+	{ return this.getInterface(0); }
+
+	/**
+	 * @return number of equal-cost next hops
+	 */
+	public int getNextHopCount()
+	{ return this.chunk.hopCounts[this.offset] & 0xff; }
+
+	/**
+	 * @param index index of a next hop
+	 * @return gateway IP address of the next hop
+	 */
+	public int getGatewayAddress(int index)
+	{ return this.chunk.gateways[this.offset + index]; }
+
+	/**
+	 * @param index index of a next hop
+	 * @return the router interface of the next hop
+	 */
+	public Iface getInterface(int index)
+	{ return this.store.getInterface(this.chunk.ifaceIndexes[this.offset + index]); }
+
+	/**
+	 * @return index of the next hop with the given gateway and interface;
+	 *         -1 if there is none
+	 */
+	public int indexOfNextHop(int gatewayAddress, Iface iface)
+	{
+		int count = this.getNextHopCount();
+		for (int i = 0; i < count; i++)
+		{
+			if (this.getGatewayAddress(i) == gatewayAddress
+					&& this.getInterface(i) == iface)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @return an entry with the given next hop added; this entry if it
+	 *         already has it
+	 */
+	public RouteEntry withNextHop(int gatewayAddress, Iface iface)
+	{
+		if (this.indexOfNextHop(gatewayAddress, iface) >= 0)
+		{ return this; }
+		int count = this.getNextHopCount();
+		int[] gateways = new int[count + 1];
+		Iface[] ifaces = new Iface[count + 1];
+		for (int i = 0; i < count; i++)
+		{
+			gateways[i] = this.getGatewayAddress(i);
+			ifaces[i] = this.getInterface(i);
+		}
+		gateways[count] = gatewayAddress;
+		ifaces[count] = iface;
+		return RouteStore.of(this.getDestinationAddress(),
+				this.getMaskAddress(), gateways, ifaces).get(0);
+	}
+
+	/**
+	 * @return an entry with the given next hop removed; this entry if it does
+	 *         not have it; null if it was the only next hop
+	 */
+	public RouteEntry withoutNextHop(int gatewayAddress, Iface iface)
+	{
+		int index = this.indexOfNextHop(gatewayAddress, iface);
+		if (index < 0)
+		{ return this; }
+		int count = this.getNextHopCount();
+		if (1 == count)
+		{ return null; }
+		int[] gateways = new int[count - 1];
+		Iface[] ifaces = new Iface[count - 1];
+		for (int i = 0, j = 0; i < count; i++)
+		{
+			if (i != index)
+			{
+				gateways[j] = this.getGatewayAddress(i);
+				ifaces[j++] = this.getInterface(i);
+			}
+		}
+		return RouteStore.of(this.getDestinationAddress(),
+				this.getMaskAddress(), gateways, ifaces).get(0);
+	}
+
+	/**
+	 * Pick a next hop for a flow. The same flow hash always picks the same
+	 * next hop while the set of next hops is unchanged.
+	 * @param flowHash hash of the flow's 5-tuple
+	 * @param count number of next hops to choose among
+	 * @return index of the chosen next hop
+	 */
+	public static int selectNextHop(int flowHash, int count)
+	{
+		// Scale the hash into [0, count) by multiplying, which is decided by its
+		// high bits; the dispatcher picks the worker by taking the hash modulo
+		// the worker count, so a worker's flows still spread over the next hops
+		return (int)(((flowHash & 0xffffffffL) * count) >>> 32);
+	}
 
-	public void setInterface(Iface iface)
-	{ this.iface = iface; }
-	
 	public String toString()
 	{
-		return String.format("%s \t%s \t%s \t%s",
-				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
-				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+		String result = "";
+		for (int i = 0; i < this.getNextHopCount(); i++)
+		{
+			result += String.format("%s%s \t%s \t%s \t%s",
+					(i > 0) ? "\n" : "",
+					IPv4.fromIPv4Address(this.getDestinationAddress()),
+					IPv4.fromIPv4Address(this.getGatewayAddress(i)),
+					IPv4.fromIPv4Address(this.getMaskAddress()),
+					this.getInterface(i).getName());
+		}
+		return result;
 	}
 }
@@ -0,0 +1,248 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Compact storage for route entries, kept as parallel primitive arrays
+ * rather than one object per entry. An entry with n next hops takes n
+ * consecutive slots: every slot holds a gateway and an interface index, and
+ * the first also holds the destination, mask and next hop count. Slots are
+ * grouped in fixed-size chunks, and an entry never spans two chunks.
+ * {@link RouteEntry} objects are only views of a slot, created on demand.
+ * <p>
+ * Storage is append-only and a written slot never changes, so a slot may be
+ * read without locking by any thread that learned its index through a
+ * safely published structure, such as a {@link PrefixTrie}. Only one thread
+ * may add entries at a time.
+ */
+public class RouteStore {
+    /**
+     * log2 of the number of slots in a chunk
+     */
+    private static final int CHUNK_SHIFT = 12;
+
+    /**
+     * Largest number of next hops an entry may have
+     */
+    public static final int MAX_NEXT_HOPS = 255;
+
+    /**
+     * A fixed-size group of slots.
+     */
+    static class Chunk {
+        final int[] destinations;
+        final int[] masks;
+        final int[] gateways;
+        final short[] ifaceIndexes;
+        final byte[] hopCounts;
+
+        Chunk(int size) {
+            this.destinations = new int[size];
+            this.masks = new int[size];
+            this.gateways = new int[size];
+            this.ifaceIndexes = new short[size];
+            this.hopCounts = new byte[size];
+        }
+    }
+
+    private final int chunkShift;
+
+    /* Replaced rather than resized when they grow */
+    private volatile Chunk[] chunks;
+    private volatile Iface[] ifaces;
+
+    /**
+     * First slot not yet written
+     */
+    private int next;
+
+    /**
+     * Create empty storage.
+     */
+    public RouteStore() {
+        this(CHUNK_SHIFT);
+    }
+
+    private RouteStore(int chunkShift) {
+        this.chunkShift = chunkShift;
+        this.chunks = new Chunk[0];
+        this.ifaces = new Iface[0];
+        this.next = 0;
+    }
+
+    /**
+     * Create storage sized for exactly one entry, which is stored in slot 0.
+     */
+    static RouteStore of(int destinationAddress, int maskAddress,
+                         int[] gatewayAddresses, Iface[] ifaces) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(gatewayAddresses.length - 1, 0));
+        RouteStore store = new RouteStore(shift);
+        store.add(destinationAddress, maskAddress, gatewayAddresses, ifaces);
+        return store;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param destinationAddress destination IP address
+     * @param maskAddress        subnet mask
+     * @param gatewayAddresses   gateway IP address of each next hop
+     * @param ifaces             router interface of each next hop
+     * @return slot of the entry
+     */
+    public int add(int destinationAddress, int maskAddress, int[] gatewayAddresses, Iface[] ifaces) {
+        int count = gatewayAddresses.length;
+        int slot = this.allocate(destinationAddress, maskAddress, count);
+        Chunk chunk = this.chunkOf(slot);
+        int offset = this.offsetOf(slot);
+        for (int i = 0; i < count; i++) {
+            chunk.gateways[offset + i] = gatewayAddresses[i];
+            chunk.ifaceIndexes[offset + i] = (short) this.indexOf(ifaces[i]);
+        }
+        return slot;
+    }
+
+    /**
+     * Add an entry with one next hop.
+     *
+     * @param destinationAddress destination IP address
+     * @param maskAddress        subnet mask
+     * @param gatewayAddress     gateway IP address
+     * @param iface              router interface
+     * @return slot of the entry
+     */
+    public int add(int destinationAddress, int maskAddress, int gatewayAddress, Iface iface) {
+        int slot = this.allocate(destinationAddress, maskAddress, 1);
+        Chunk chunk = this.chunkOf(slot);
+        int offset = this.offsetOf(slot);
+        chunk.gateways[offset] = gatewayAddress;
+        chunk.ifaceIndexes[offset] = (short) this.indexOf(iface);
+        return slot;
+    }
+
+    /**
+     * Add a copy of an entry, unless it is already in this storage.
+     *
+     * @param entry the entry
+     * @return slot of the entry in this storage
+     */
+    public int add(RouteEntry entry) {
+        if (entry.getStore() == this) {
+            return entry.getSlot();
+        }
+        int count = entry.getNextHopCount();
+        int[] gatewayAddresses = new int[count];
+        Iface[] ifaces = new Iface[count];
+        for (int i = 0; i < count; i++) {
+            gatewayAddresses[i] = entry.getGatewayAddress(i);
+            ifaces[i] = entry.getInterface(i);
+        }
+        return this.add(entry.getDestinationAddress(), entry.getMaskAddress(), gatewayAddresses, ifaces);
+    }
+
+    /**
+     * @param slot slot of an entry
+     * @return a view of the entry
+     */
+    public RouteEntry get(int slot) {
+        return new RouteEntry(this, slot, this.chunkOf(slot), this.offsetOf(slot));
+    }
+
+    /**
+     * @param slot slot of an entry
+     * @return number of next hops of the entry, which is also the number of
+     * slots it takes
+     */
+    public int getNextHopCount(int slot) {
+        return this.chunkOf(slot).hopCounts[this.offsetOf(slot)] & 0xff;
+    }
+
+    /**
+     * @param slot a slot
+     * @return the chunk holding the slot
+     */
+    Chunk chunkOf(int slot) {
+        return this.chunks[slot >>> this.chunkShift];
+    }
+
+    /**
+     * @param slot a slot
+     * @return offset of the slot in its chunk
+     */
+    int offsetOf(int slot) {
+        return slot & ((1 << this.chunkShift) - 1);
+    }
+
+    /**
+     * @param index interface index stored in a slot
+     * @return the interface
+     */
+    Iface getInterface(int index) {
+        return this.ifaces[index];
+    }
+
+    /**
+     * @return number of slots written or skipped, including those of entries
+     * no longer in use
+     */
+    public int size() {
+        return this.next;
+    }
+
+    /**
+     * Reserve slots for an entry and write its destination, mask and next
+     * hop count.
+     */
+    private int allocate(int destinationAddress, int maskAddress, int count) {
+        int chunkSize = 1 << this.chunkShift;
+        if (0 == count || count > MAX_NEXT_HOPS || count > chunkSize) {
+            throw new IllegalArgumentException("invalid number of next hops " + count);
+        }
+
+        // Start a new chunk if the entry does not fit in what is left
+        int slot = this.next;
+        if ((slot & (chunkSize - 1)) + count > chunkSize) {
+            slot = (slot + chunkSize - 1) & -chunkSize;
+        }
+        Chunk chunk = this.chunkFor(slot >>> this.chunkShift);
+        int offset = slot & (chunkSize - 1);
+        chunk.destinations[offset] = destinationAddress;
+        chunk.masks[offset] = maskAddress;
+        chunk.hopCounts[offset] = (byte) count;
+        this.next = slot + count;
+        return slot;
+    }
+
+    private Chunk chunkFor(int index) {
+        Chunk[] chunks = this.chunks;
+        if (index >= chunks.length) {
+            Chunk[] grown = new Chunk[Math.max(index + 1, chunks.length * 2)];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            this.chunks = grown;
+            chunks = grown;
+        }
+        // Chunks are allocated as they are first used; readers never look at
+        // a chunk before an entry in it is published
+        if (null == chunks[index]) {
+            chunks[index] = new Chunk(1 << this.chunkShift);
+        }
+        return chunks[index];
+    }
+
+    private int indexOf(Iface iface) {
+        Iface[] ifaces = this.ifaces;
+        for (int i = 0; i < ifaces.length; i++) {
+            if (ifaces[i] == iface) {
+                return i;
+            }
+        }
+        if (ifaces.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("too many interfaces");
+        }
+        Iface[] grown = new Iface[ifaces.length + 1];
+        System.arraycopy(ifaces, 0, grown, 0, ifaces.length);
+        grown[ifaces.length] = iface;
+        this.ifaces = grown;
+        return ifaces.length;
+    }
+}
@@ -4,31 +4,299 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
- * Route table for a router.
+ * Route table for a router. Readers use an immutable snapshot of the
+ * entries published through a volatile reference, so lookups never lock;
+ * writers build the next snapshot under a lock and publish it once per
+ * {@link Update}.
  *
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable {
     /**
-     * Entries in the route table
+     * A set of changes published together as one new snapshot. Holds the
+     * route table's write lock from {@link RouteTable#beginUpdate()} until
+     * {@link #commit()}, which must always be called.
      */
-    private List<RouteEntry> entries;
+    public class Update {
+        private final PrefixTrie.Editor editor;
+        private boolean discarded;
+
+        private Update(PrefixTrie.Editor editor) {
+            this.editor = editor;
+        }
+
+        /**
+         * Add an entry, replacing any entry for the same destination and mask.
+         *
+         * @param dstIp  destination IP
+         * @param gwIp   gateway IP
+         * @param maskIp subnet mask
+         * @param iface  router interface out which to send packets to reach
+         *               the destination or gateway
+         */
+        public void insert(int dstIp, int gwIp, int maskIp, Iface iface) {
+            this.editor.put(dstIp, maskIp, gwIp, iface);
+        }
+
+        /**
+         * Add an equal-cost next hop to an entry, adding the entry if there is
+         * none for the destination and mask.
+         *
+         * @param dstIp  destination IP
+         * @param gwIp   gateway IP of the next hop
+         * @param maskIp subnet mask
+         * @param iface  router interface of the next hop
+         * @return true if the next hop was added, false if the entry already
+         * had it
+         */
+        public boolean addNextHop(int dstIp, int gwIp, int maskIp, Iface iface) {
+            int length = PrefixTrie.prefixLength(maskIp);
+            RouteEntry entry = this.editor.get(dstIp, length);
+            if (null == entry) {
+                this.editor.put(dstIp, maskIp, gwIp, iface);
+                return true;
+            }
+            RouteEntry added = entry.withNextHop(gwIp, iface);
+            if (added == entry) {
+                return false;
+            }
+            this.editor.put(dstIp, length, added);
+            return true;
+        }
+
+        /**
+         * Remove one next hop from an entry, removing the entry if it was the
+         * last one.
+         *
+         * @param dstIp  destination IP of the entry
+         * @param maskIp subnet mask of the entry
+         * @param gwIp   gateway IP of the next hop
+         * @param iface  router interface of the next hop
+         * @return true if the next hop was found and removed, otherwise false
+         */
+        public boolean removeNextHop(int dstIp, int maskIp, int gwIp, Iface iface) {
+            int length = PrefixTrie.prefixLength(maskIp);
+            RouteEntry entry = this.editor.get(dstIp, length);
+            if (null == entry) {
+                return false;
+            }
+            RouteEntry removed = entry.withoutNextHop(gwIp, iface);
+            if (removed == entry) {
+                return false;
+            }
+            if (null == removed) {
+                this.editor.remove(dstIp, length);
+            } else {
+                this.editor.put(dstIp, length, removed);
+            }
+            return true;
+        }
+
+        /**
+         * @param dstIp  destination IP of the entry
+         * @param maskIp subnet mask of the entry
+         * @return the entry as edited so far in this update; null if there is
+         * none
+         */
+        public RouteEntry get(int dstIp, int maskIp) {
+            return this.editor.get(dstIp, PrefixTrie.prefixLength(maskIp));
+        }
+
+        /**
+         * Remove an entry.
+         *
+         * @param dstIp  destination IP of the entry to remove
+         * @param maskIp subnet mask of the entry to remove
+         * @return true if a matching entry was found and removed, otherwise false
+         */
+        public boolean remove(int dstIp, int maskIp) {
+            return this.editor.remove(dstIp, PrefixTrie.prefixLength(maskIp)) != null;
+        }
+
+        /**
+         * Change the gateway and interface of an entry, replacing all of its
+         * next hops with the given one. The entry is replaced rather than
+         * changed, since published snapshots still refer to it.
+         *
+         * @param dstIp  destination IP of the entry to update
+         * @param maskIp subnet mask of the entry to update
+         * @param gwIp   new gateway IP address for matching entry
+         * @param iface  new router interface for matching entry
+         * @return true if a matching entry was found and updated, otherwise false
+         */
+        public boolean update(int dstIp, int maskIp, int gwIp, Iface iface) {
+            int length = PrefixTrie.prefixLength(maskIp);
+            RouteEntry entry = this.editor.get(dstIp, length);
+            if (null == entry) {
+                return false;
+            }
+            this.editor.put(entry.getDestinationAddress(), entry.getMaskAddress(), gwIp, iface);
+            return true;
+        }
+
+        /**
+         * @param dstIp  destination IP of the entry to find
+         * @param maskIp subnet mask of the entry to find
+         * @return the entry, including changes made in this update; null if
+         * none exists
+         */
+        public RouteEntry find(int dstIp, int maskIp) {
+            return this.editor.get(dstIp, PrefixTrie.prefixLength(maskIp));
+        }
+
+        /**
+         * Throw away the changes; commit() will then publish nothing.
+         */
+        public void discard() {
+            this.discarded = true;
+        }
+
+        /**
+         * Publish the changes, if any, and release the write lock.
+         */
+        public void commit() {
+            try {
+                if (!this.discarded && this.editor.isChanged()) {
+                    RouteTable.this.snapshot = this.editor.build();
+                    RouteTable.this.generation.incrementAndGet();
+                    RouteTable.this.scheduleRecompile();
+                }
+            } finally {
+                RouteTable.this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Current entries in the route table, indexed by prefix; never changed
+     * once published
+     */
+    private volatile PrefixTrie snapshot;
+
+    /**
+     * Held by the one writer building the next snapshot
+     */
+    private final ReentrantLock writeLock;
+
+    /**
+     * Bumped after every change to the entries
+     */
+    private final AtomicInteger generation;
+
+    /**
+     * DIR-24-8 compilation of the entries used for lookups; null unless
+     * compiled lookups are enabled
+     */
+    private volatile Dir248Table compiled;
+
+    /**
+     * Thread that recompiles the entries after they change; null unless
+     * compiled lookups are enabled
+     */
+    private volatile ExecutorService compiler;
+
+    /**
+     * Set while a recompilation is queued but has not started
+     */
+    private final AtomicBoolean recompilePending;
+
+    /* Metrics */
+
+    /**
+     * Traffic counters for prefixes that have carried traffic, keyed by
+     * prefix and mask
+     */
+    private final ConcurrentHashMap<Long, PrefixCounter> counters;
+
+    /**
+     * Durations of a sample of lookups
+     */
+    private final LatencyHistogram lookupLatency;
+
+    /**
+     * One lookup in this many, plus one, is timed; a power of two minus one
+     */
+    private static final int LOOKUP_SAMPLE_MASK = 1023;
 
     /**
      * Initialize an empty route table.
      */
     public RouteTable() {
-        this.entries = new LinkedList<RouteEntry>();
+        this.snapshot = new PrefixTrie();
+        this.writeLock = new ReentrantLock();
+        this.generation = new AtomicInteger();
+        this.recompilePending = new AtomicBoolean();
+        this.counters = new ConcurrentHashMap<Long, PrefixCounter>();
+        this.lookupLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Serve lookups from a DIR-24-8 compilation of the table. Inserts and
+     * removes trigger a recompilation in the background; until it finishes,
+     * lookups keep using the previous compilation.
+     */
+    public synchronized void enableCompiledLookup() {
+        if (this.compiler != null) {
+            return;
+        }
+        this.compiler = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "route-compiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduleRecompile();
+    }
+
+    /**
+     * Queue a recompilation, unless one is already queued and will pick up
+     * this change as well.
+     */
+    private void scheduleRecompile() {
+        if (this.compiler != null && this.recompilePending.compareAndSet(false, true)) {
+            this.compiler.execute(this::recompile);
+        }
+    }
+
+    private void recompile() {
+        this.recompilePending.set(false);
+        long start = System.nanoTime();
+        Dir248Table table = new Dir248Table(this.getEntries());
+        this.compiled = table;
+        // Results resolved against the previous compilation are now stale
+        this.generation.incrementAndGet();
+        Log.debug("compiled %d routes into %d overflow blocks in %.1f ms", table.size(),
+                table.getBlocks(), (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * @return a counter that changes whenever a new snapshot is published
+     */
+    public int getGeneration() {
+        return this.generation.get();
     }
 
     /**
@@ -38,22 +306,194 @@ public class RouteTable {
      * @return the matching route entry, null if none exists
      */
     public RouteEntry lookup(int ip) {
-        synchronized (this.entries) {
-            if (ip < 0 || this.entries == null) {
-                return null;
-            }
-            RouteEntry match = null;
-            // find the longest prefix match
-            for (var entry : this.entries) {
-                var mask = entry.getMaskAddress();
-                if ((ip & mask) == (entry.getDestinationAddress() & mask)) {
-                    if (match == null || mask > match.getMaskAddress()) {
-                        match = entry;
+        if ((ThreadLocalRandom.current().nextInt() & LOOKUP_SAMPLE_MASK) != 0) {
+            return this.lookupUnsampled(ip);
+        }
+        long start = System.nanoTime();
+        RouteEntry entry = this.lookupUnsampled(ip);
+        this.lookupLatency.record(System.nanoTime() - start);
+        return entry;
+    }
+
+    private RouteEntry lookupUnsampled(int ip) {
+        Dir248Table table = this.compiled;
+        if (table != null) {
+            return table.lookup(ip);
+        }
+        return this.snapshot.lookup(ip);
+    }
+
+    /**
+     * Lookup the route entries that match a burst of IP addresses. The whole
+     * burst is resolved against one snapshot, loaded once.
+     *
+     * @param dsts  IP addresses
+     * @param count number of addresses to look up
+     * @param out   filled with the matching route entries, null where none
+     *              exists
+     */
+    public void lookupBatch(int[] dsts, int count, RouteEntry[] out) {
+        Dir248Table table = this.compiled;
+        if (table != null) {
+            table.lookupBatch(dsts, count, out);
+        } else {
+            this.snapshot.lookupBatch(dsts, count, out);
+        }
+    }
+
+    /**
+     * Magic number at the start of a binary route table snapshot
+     */
+    public static final int SNAPSHOT_MAGIC = 0x56525431; // "VRT1"
+
+    /**
+     * Populate the route table from a file through a memory mapping. Accepts
+     * the same text format as {@link #load(String, Router)}, parsed without
+     * regular expressions, or a binary snapshot written by
+     * {@link #saveSnapshot(String)}. All entries are published as one
+     * snapshot, and none are if the file has an error.
+     *
+     * @param filename name of the file containing the route table
+     * @param router   the route table is associated with
+     * @return true if route table was successfully loaded, otherwise false
+     */
+    public boolean loadFast(String filename, Router router) {
+        TableFileReader reader;
+        try {
+            reader = TableFileReader.open(filename);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return false;
+        }
+
+        Update update = this.beginUpdate();
+        try {
+            if (reader.hasMagic(SNAPSHOT_MAGIC)) {
+                loadSnapshot(reader, update, router);
+            } else {
+                loadText(reader, update, router);
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            update.discard();
+            System.err.println("Error loading route table " + filename + ", " + e.getMessage());
+            return false;
+        } finally {
+            update.commit();
+        }
+    }
+
+    private static void loadText(TableFileReader reader, Update update, Router router) {
+        while (reader.nextLine()) {
+            int dstIp = reader.parseIp();
+            int gwIp = reader.parseIp();
+            int maskIp = reader.parseIp();
+            String ifaceName = reader.parseName();
+            reader.endLine();
+
+            if (0 == dstIp || 0 == maskIp) {
+                throw reader.error("invalid destination or mask");
+            }
+            Iface iface = router.getInterface(ifaceName);
+            if (null == iface) {
+                throw reader.error("invalid interface " + ifaceName);
+            }
+            update.addNextHop(dstIp, gwIp, maskIp, iface);
+        }
+    }
+
+    /**
+     * Snapshot layout: magic, interface count, interface names (length byte
+     * then bytes), next hop count, then per next hop destination, gateway,
+     * mask and an interface index byte.
+     */
+    private static void loadSnapshot(TableFileReader reader, Update update, Router router) {
+        reader.readInt();
+        Iface[] ifaces = new Iface[reader.readCount(1)];
+        for (int i = 0; i < ifaces.length; i++) {
+            byte[] name = new byte[reader.readByte()];
+            reader.readBytes(name);
+            ifaces[i] = router.getInterface(new String(name));
+            if (null == ifaces[i]) {
+                throw new IllegalArgumentException("invalid interface " + new String(name));
+            }
+        }
+
+        int count = reader.readCount(13);
+        for (int i = 0; i < count; i++) {
+            int dstIp = reader.readInt();
+            int gwIp = reader.readInt();
+            int maskIp = reader.readInt();
+            int index = reader.readByte();
+            if (index >= ifaces.length) {
+                throw new IllegalArgumentException("invalid interface index " + index);
+            }
+            update.addNextHop(dstIp, gwIp, maskIp, ifaces[index]);
+        }
+    }
+
+    /**
+     * Write the route table as a binary snapshot that
+     * {@link #loadFast(String, Router)} can load.
+     *
+     * @param filename name of the file to write
+     * @return true if the snapshot was written, otherwise false
+     */
+    public boolean saveSnapshot(String filename) {
+        List<RouteEntry> entries = this.getEntries();
+        Map<Iface, Integer> indexes = new HashMap<Iface, Integer>();
+        List<byte[]> names = new ArrayList<byte[]>();
+        int nextHops = 0;
+        int size = 12;
+        for (RouteEntry entry : entries) {
+            for (int i = 0; i < entry.getNextHopCount(); i++) {
+                Iface iface = entry.getInterface(i);
+                if (!indexes.containsKey(iface)) {
+                    byte[] name = iface.getName().getBytes();
+                    // Name lengths and interface indexes are stored in one byte each
+                    if (name.length > 0xff || names.size() > 0xff) {
+                        System.err.println("Cannot snapshot route table " + filename
+                                + ", too many interfaces or name too long");
+                        return false;
                     }
+                    indexes.put(iface, names.size());
+                    names.add(name);
+                    size += 1 + name.length;
                 }
             }
-            return match;
+            nextHops += entry.getNextHopCount();
         }
+        size += nextHops * 13;
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(SNAPSHOT_MAGIC);
+        buf.putInt(names.size());
+        for (byte[] name : names) {
+            buf.put((byte) name.length);
+            buf.put(name);
+        }
+        buf.putInt(nextHops);
+        for (RouteEntry entry : entries) {
+            for (int i = 0; i < entry.getNextHopCount(); i++) {
+                buf.putInt(entry.getDestinationAddress());
+                buf.putInt(entry.getGatewayAddress(i));
+                buf.putInt(entry.getMaskAddress());
+                buf.put((byte) (int) indexes.get(entry.getInterface(i)));
+            }
+        }
+        buf.flip();
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+             FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -145,8 +585,9 @@ public class RouteTable {
                 return false;
             }
 
-            // Add an entry to the route table
-            this.insert(dstIp, gwIp, maskIp, iface);
+            // Add an entry to the route table; repeated prefixes are
+            // equal-cost next hops
+            this.addNextHop(dstIp, gwIp, maskIp, iface);
         }
 
         // Close the file
@@ -159,7 +600,8 @@ public class RouteTable {
     }
 
     /**
-     * Add an entry to the route table.
+     * Add an entry to the route table, replacing any entry for the same
+     * destination and mask.
      *
      * @param dstIp  destination IP
      * @param gwIp   gateway IP
@@ -168,9 +610,30 @@ public class RouteTable {
      *               destination or gateway
      */
     public void insert(int dstIp, int gwIp, int maskIp, Iface iface) {
-        RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-        synchronized (this.entries) {
-            this.entries.add(entry);
+        Update update = this.beginUpdate();
+        try {
+            update.insert(dstIp, gwIp, maskIp, iface);
+        } finally {
+            update.commit();
+        }
+    }
+
+    /**
+     * Add an equal-cost next hop to an entry in the route table, adding the
+     * entry if there is none for the destination and mask.
+     *
+     * @param dstIp  destination IP
+     * @param gwIp   gateway IP of the next hop
+     * @param maskIp subnet mask
+     * @param iface  router interface of the next hop
+     * @return true if the next hop was added, false if the entry already had it
+     */
+    public boolean addNextHop(int dstIp, int gwIp, int maskIp, Iface iface) {
+        Update update = this.beginUpdate();
+        try {
+            return update.addNextHop(dstIp, gwIp, maskIp, iface);
+        } finally {
+            update.commit();
         }
     }
 
@@ -182,14 +645,12 @@ public class RouteTable {
      * @return true if a matching entry was found and removed, otherwise false
      */
     public boolean remove(int dstIp, int maskIp) {
-        synchronized (this.entries) {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry) {
-                return false;
-            }
-            this.entries.remove(entry);
+        Update update = this.beginUpdate();
+        try {
+            return update.remove(dstIp, maskIp);
+        } finally {
+            update.commit();
         }
-        return true;
     }
 
     /**
@@ -202,15 +663,23 @@ public class RouteTable {
      * @return true if a matching entry was found and updated, otherwise false
      */
     public boolean update(int dstIp, int maskIp, int gwIp, Iface iface) {
-        synchronized (this.entries) {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry) {
-                return false;
-            }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+        Update update = this.beginUpdate();
+        try {
+            return update.update(dstIp, maskIp, gwIp, iface);
+        } finally {
+            update.commit();
         }
-        return true;
+    }
+
+    /**
+     * Start a set of changes that readers will see all at once. Blocks while
+     * another update is in progress.
+     *
+     * @return the update; {@link Update#commit()} must be called on it
+     */
+    public Update beginUpdate() {
+        this.writeLock.lock();
+        return new Update(this.snapshot.edit());
     }
 
     /**
@@ -220,32 +689,81 @@ public class RouteTable {
      * @param maskIp subnet mask of the entry to find
      * @return a matching entry if one was found, otherwise null
      */
-    private RouteEntry find(int dstIp, int maskIp) {
-        synchronized (this.entries) {
-            for (RouteEntry entry : this.entries) {
-                if ((entry.getDestinationAddress() == dstIp) && (entry.getMaskAddress() == maskIp)) {
-                    return entry;
-                }
-            }
-        }
-        return null;
+    public RouteEntry find(int dstIp, int maskIp) {
+        return this.snapshot.get(dstIp, PrefixTrie.prefixLength(maskIp));
     }
 
     public String toString() {
-        synchronized (this.entries) {
-            if (0 == this.entries.size()) {
-                return " WARNING: route table empty";
-            }
+        List<RouteEntry> entries = this.getEntries();
+        if (0 == entries.size()) {
+            return " WARNING: route table empty";
+        }
+
+        StringBuilder result = new StringBuilder("Destination\tGateway\t\tMask\t\tIface\n");
+        for (RouteEntry entry : entries) {
+            result.append(entry.toString()).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Get the traffic counter for an entry's prefix, creating it the first
+     * time. Callers that forward many packets along the same route should
+     * hold on to the counter rather than ask again for every packet.
+     *
+     * @param entry a route entry
+     * @return the counter for the entry's destination and mask
+     */
+    public PrefixCounter getCounter(RouteEntry entry) {
+        int mask = entry.getMaskAddress();
+        int prefix = entry.getDestinationAddress() & mask;
+        return this.counters.computeIfAbsent(counterKey(prefix, mask), k -> new PrefixCounter(prefix, mask));
+    }
 
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries) {
-                result += entry.toString() + "\n";
+    /**
+     * Snapshot the traffic counters. Counters of prefixes no longer in the
+     * table are dropped.
+     *
+     * @return counts for the prefixes in the table that have carried
+     * traffic, most bytes first
+     */
+    public List<PrefixCounter.Snapshot> getPrefixStatistics() {
+        PrefixTrie entries = this.snapshot;
+        List<PrefixCounter.Snapshot> result = new ArrayList<PrefixCounter.Snapshot>();
+        for (Iterator<PrefixCounter> it = this.counters.values().iterator(); it.hasNext(); ) {
+            PrefixCounter counter = it.next();
+            int mask = counter.getMaskAddress();
+            if (null == entries.get(counter.getDestinationAddress(), PrefixTrie.prefixLength(mask))) {
+                it.remove();
+                continue;
+            }
+            PrefixCounter.Snapshot counts = counter.snapshot();
+            if (counts.getPackets() > 0) {
+                result.add(counts);
             }
-            return result;
         }
+        result.sort((a, b) -> Long.compare(b.getBytes(), a.getBytes()));
+        return result;
+    }
+
+    /**
+     * @return durations of a sample of lookups so far
+     */
+    public LatencyHistogram.Snapshot getLookupLatency() {
+        return this.lookupLatency.snapshot();
+    }
+
+    private static long counterKey(int prefix, int mask) {
+        return ((long) prefix << 32) | (mask & 0xffffffffL);
     }
 
+    /**
+     * @return a copy of the entries, in order of destination and then mask
+     */
     public List<RouteEntry> getEntries() {
-        return entries;
+        PrefixTrie entries = this.snapshot;
+        List<RouteEntry> result = new ArrayList<RouteEntry>(entries.size());
+        entries.collect(result);
+        return result;
     }
 }
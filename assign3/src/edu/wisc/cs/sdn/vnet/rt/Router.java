@@ -2,28 +2,57 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.FlowHash;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
 
 import net.floodlightcontroller.packet.*;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class Router extends Device {
     static class RipEntry {
-        int metric;
-        long timeStamp;
+        volatile int metric;
+        volatile long timeStamp;
+
+        /**
+         * Garbage-collection timer once the metric is 16; null until the route
+         * first times out or is withdrawn
+         */
+        TimingWheel.Timeout<RipKey> timeout;
+
+        /**
+         * Next hops the route is learned through, each with its own timeout;
+         * empty for directly connected routes and once the metric is 16.
+         * Guarded by the rip table
+         */
+        final List<RipHop> hops = new ArrayList<>();
 
         RipEntry(int metric, long timeStamp) {
             this.metric = metric;
             this.timeStamp = timeStamp;
         }
 
+        RipHop findHop(int gateway, Iface iface) {
+            for (var hop : this.hops) {
+                if (hop.gateway == gateway && hop.iface == iface) {
+                    return hop;
+                }
+            }
+            return null;
+        }
+
         public void setMetric(int metric) {
             this.metric = metric;
         }
@@ -41,6 +70,24 @@ public class Router extends Device {
         }
     }
 
+    /**
+     * A next hop a learned route is advertised through. Equal-cost next hops
+     * time out separately, so a neighbour that stops advertising leaves the
+     * route while the others keep it alive.
+     */
+    static class RipHop {
+        final RipKey key;
+        final int gateway;
+        final Iface iface;
+        TimingWheel.Timeout<RipHop> timeout;
+
+        RipHop(RipKey key, int gateway, Iface iface) {
+            this.key = key;
+            this.gateway = gateway;
+            this.iface = iface;
+        }
+    }
+
     static class RipKey {
         int ip;
         int mask;
@@ -67,12 +114,82 @@ public class Router extends Device {
         }
     }
 
+    /**
+     * A full RIP response out one interface, serialized as frames of at most
+     * RIP_MAX_ENTRIES entries, with the table generations it was built from.
+     * Each frame is serialized once as a complete VNS command and is never
+     * written to again, since the writer thread may still be sending it.
+     */
+    static class RipResponse {
+        final int routeGeneration;
+        final int ripGeneration;
+        final List<byte[]> frames;
+
+        RipResponse(int routeGeneration, int ripGeneration, List<byte[]> frames) {
+            this.routeGeneration = routeGeneration;
+            this.ripGeneration = ripGeneration;
+            this.frames = frames;
+        }
+    }
+
     private final static byte[] broadcastMac = {
             (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF
     };
 
+    /**
+     * Number of busiest prefixes reported when the router shuts down
+     */
+    private final static int TOP_PREFIXES = 10;
+
+    /**
+     * Most route entries carried by one RIP message (RFC 2453)
+     */
+    private final static int RIP_MAX_ENTRIES = 25;
+
+    /**
+     * Average time between full RIP updates
+     */
+    private final static long RIP_UPDATE_INTERVAL_MS = 10 * 1000;
+
+    /**
+     * Most the update interval is moved either way, so that routers do not
+     * fall into step
+     */
+    private final static long RIP_UPDATE_JITTER_MS = RIP_UPDATE_INTERVAL_MS / 6;
+
+    /**
+     * Time the messages of one full update are spread over
+     */
+    private final static long RIP_PACING_WINDOW_MS = RIP_UPDATE_INTERVAL_MS / 2;
+
+    /**
+     * Longest gap between the messages of one full update
+     */
+    private final static long RIP_MAX_GAP_MS = 50;
+
+    /**
+     * Time after its last advertisement that a learned route is removed
+     */
+    private final static long RIP_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Time a removed route is kept with metric 16 before it is forgotten, so
+     * only a better route can replace it meanwhile
+     */
+    private final static long RIP_GARBAGE_COLLECTION_MS = 2 * RIP_UPDATE_INTERVAL_MS;
+
+    /**
+     * Resolution of the RIP route timers
+     */
+    private final static long RIP_TICK_MS = 1000;
+
     private Timer timer;
 
+    /**
+     * Full RIP update being sent; only touched from the timer thread
+     */
+    private RipPacer ripPacer;
+
     /**
      * Routing table for the router
      */
@@ -84,11 +201,74 @@ public class Router extends Device {
     private final ConcurrentHashMap<RipKey, RipEntry> ripTable = new ConcurrentHashMap<>();
     ;
 
+    /**
+     * Prefixes changed or removed since the last triggered update, in the
+     * order they changed; guarded by the rip table
+     */
+    private final Set<RipKey> ripChanges = new LinkedHashSet<>();
+
+    /**
+     * Garbage-collection timers of timed-out and withdrawn routes; guarded by
+     * the rip table
+     */
+    private final TimingWheel<RipKey> ripTimers = new TimingWheel<>(64, RIP_TICK_MS, System.currentTimeMillis());
+
+    /**
+     * Timeouts of the next hops of learned routes; guarded by the rip table
+     */
+    private final TimingWheel<RipHop> ripHopTimers = new TimingWheel<>(64, RIP_TICK_MS, System.currentTimeMillis());
+
+    /**
+     * Bumped whenever an advertised metric changes; written under the rip table
+     */
+    private volatile int ripGeneration;
+
+    /**
+     * Serialized full responses by interface, rebuilt when the route table or
+     * an advertised metric changes
+     */
+    private final ConcurrentHashMap<Iface, RipResponse> ripResponses = new ConcurrentHashMap<>();
+
     /**
      * ARP cache for the router
      */
     private ArpCache arpCache;
 
+    /**
+     * Resolves next hops missing from the ARP cache, holding packets for them
+     */
+    private final ArpResolver arpResolver;
+
+    /**
+     * Resolved output interface and next-hop MAC for recent destinations
+     */
+    private final DestinationCache destinationCache;
+
+    /**
+     * Limits the ICMP errors the router generates
+     */
+    private final IcmpRateLimiter icmpLimiter;
+
+    /**
+     * Addresses of the router's interfaces; rebuilt when they change
+     */
+    private volatile LocalAddressIndex localAddresses;
+
+    /**
+     * Whether transit IPv4 packets are forwarded directly on the frame bytes
+     */
+    private boolean fastPath;
+
+    /**
+     * Whether route and ARP files are loaded through the memory-mapped parser
+     */
+    private boolean fastLoad;
+
+    /**
+     * Whether binary snapshots are written next to the loaded route and ARP files
+     */
+    private boolean saveSnapshots;
+
     /**
      * Creates a router for a specific host.
      *
@@ -98,7 +278,33 @@ public class Router extends Device {
         super(host, logfile);
         this.routeTable = new RouteTable();
         this.arpCache = new ArpCache();
+        this.arpResolver = new ArpResolver(this, this.arpCache);
+        this.destinationCache = new DestinationCache(this.routeTable, this.arpCache, this.arpResolver);
+        this.icmpLimiter = new IcmpRateLimiter();
         this.timer = new Timer();
+        this.localAddresses = new LocalAddressIndex(this.interfaces.values());
+    }
+
+    /**
+     * Rebuild the index of local addresses from the current interfaces.
+     */
+    @Override
+    public void interfacesUpdated() {
+        this.localAddresses = new LocalAddressIndex(this.interfaces.values());
+        this.ripResponses.clear();
+    }
+
+    @Override
+    public void destroy() {
+        System.out.println("Destination cache: " + this.destinationCache.toString());
+        System.out.println("ICMP errors: " + this.icmpLimiter.toString());
+        System.out.println("ARP resolution: " + this.arpResolver.toString());
+        System.out.println("Route lookups: " + this.routeTable.getLookupLatency().toString());
+        var prefixes = this.routeTable.getPrefixStatistics();
+        for (int i = 0; i < Math.min(TOP_PREFIXES, prefixes.size()); i++) {
+            System.out.println("Top prefix: " + prefixes.get(i).toString());
+        }
+        super.destroy();
     }
 
     /**
@@ -108,13 +314,43 @@ public class Router extends Device {
         return this.routeTable;
     }
 
+    /**
+     * @param fastPath whether transit IPv4 packets should be forwarded
+     *                 directly on the received frame bytes
+     */
+    public void setFastPath(boolean fastPath) {
+        this.fastPath = fastPath;
+    }
+
+    /**
+     * Serve route lookups from a DIR-24-8 compilation of the routing table,
+     * recompiled in the background whenever routes are added or removed.
+     */
+    public void enableCompiledRoutes() {
+        this.routeTable.enableCompiledLookup();
+    }
+
+    /**
+     * @param fastLoad      whether route and ARP files are loaded through the
+     *                      memory-mapped parser, which also accepts binary
+     *                      snapshots
+     * @param saveSnapshots whether a binary snapshot is written to
+     *                      {@code <file>.bin} after each file is loaded
+     */
+    public void setTableLoading(boolean fastLoad, boolean saveSnapshots) {
+        this.fastLoad = fastLoad;
+        this.saveSnapshots = saveSnapshots;
+    }
+
     /**
      * Load a new routing table from a file.
      *
      * @param routeTableFile the name of the file containing the routing table
      */
     public void loadRouteTable(String routeTableFile) {
-        if (!routeTable.load(routeTableFile, this)) {
+        var loaded = this.fastLoad ? routeTable.loadFast(routeTableFile, this)
+                : routeTable.load(routeTableFile, this);
+        if (!loaded) {
             System.err.println("Error setting up routing table from file "
                     + routeTableFile);
             System.exit(1);
@@ -124,6 +360,10 @@ public class Router extends Device {
         System.out.println("-------------------------------------------------");
         System.out.print(this.routeTable.toString());
         System.out.println("-------------------------------------------------");
+
+        if (this.saveSnapshots && this.routeTable.saveSnapshot(routeTableFile + ".bin")) {
+            System.out.println("Saved route table snapshot " + routeTableFile + ".bin");
+        }
     }
 
     /**
@@ -132,7 +372,9 @@ public class Router extends Device {
      * @param arpCacheFile the name of the file containing the ARP cache
      */
     public void loadArpCache(String arpCacheFile) {
-        if (!arpCache.load(arpCacheFile)) {
+        var loaded = this.fastLoad ? arpCache.loadFast(arpCacheFile)
+                : arpCache.load(arpCacheFile);
+        if (!loaded) {
             System.err.println("Error setting up ARP cache from file "
                     + arpCacheFile);
             System.exit(1);
@@ -142,6 +384,10 @@ public class Router extends Device {
         System.out.println("----------------------------------");
         System.out.print(this.arpCache.toString());
         System.out.println("----------------------------------");
+
+        if (this.saveSnapshots && this.arpCache.saveSnapshot(arpCacheFile + ".bin")) {
+            System.out.println("Saved ARP cache snapshot " + arpCacheFile + ".bin");
+        }
     }
 
     /**
@@ -151,15 +397,20 @@ public class Router extends Device {
      * @param inIface     the interface on which the packet was received
      */
     public void handlePacket(Ethernet etherPacket, Iface inIface) {
-        System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
+        Log.packet(Log.Level.INFO, "*** -> Received packet: ", etherPacket);
+
+        if (etherPacket.getEtherType() == Ethernet.TYPE_ARP) {
+            this.handleArp(etherPacket, inIface);
+            return;
+        }
 
         if (etherPacket.getEtherType() == Ethernet.TYPE_IPv4) {
             // verify check sum
             var header = (IPv4) etherPacket.getPayload();
-            if (header.getPayload() instanceof UDP && ((UDP) header.getPayload()).getDestinationPort() == UDP.RIP_PORT) {
+            if (header.getProtocol() == IPv4.PROTOCOL_UDP && header.getPayload() instanceof UDP
+                    && ((UDP) header.getPayload()).getDestinationPort() == UDP.RIP_PORT) {
                 handleRIP(etherPacket, inIface);
-                System.out.println("*** <- RIP packet handled");
+                Log.debug("*** <- RIP packet handled");
                 return;
             }
 
@@ -183,95 +434,253 @@ public class Router extends Device {
 
             header.resetChecksum();
 
-            for (var face : interfaces.values()) {
-                if (header.getDestinationAddress() == face.getIpAddress()) {
-                    var protocol = header.getProtocol();
-                    if (protocol == IPv4.PROTOCOL_TCP || protocol == IPv4.PROTOCOL_UDP) {
-                        this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 3);
-                    }
-                    if (protocol == IPv4.PROTOCOL_ICMP) {
-                        var icmp = (ICMP) header.getPayload();
-                        if (icmp.getIcmpType() == ICMP.TYPE_ECHO_REQUEST) {
-                            sendEcho(etherPacket, inIface);
-                        }
+            if (this.localAddresses.containsIp(header.getDestinationAddress())) {
+                var protocol = header.getProtocol();
+                if (protocol == IPv4.PROTOCOL_TCP || protocol == IPv4.PROTOCOL_UDP) {
+                    this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 3);
+                }
+                if (protocol == IPv4.PROTOCOL_ICMP) {
+                    var icmp = (ICMP) header.getPayload();
+                    if (icmp.getIcmpType() == ICMP.TYPE_ECHO_REQUEST) {
+                        sendEcho(etherPacket, inIface);
                     }
-                    return;
                 }
+                return;
             }
 
-            var routeEntry = this.routeTable.lookup(header.getDestinationAddress());
-            // no matching route found
-            if (routeEntry == null) {
-                this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 0);
+            var resolved = this.destinationCache.lookup(header.getDestinationAddress());
+            if (resolved == null) {
+                var routeEntry = this.routeTable.lookup(header.getDestinationAddress());
+                // no matching route found
+                if (routeEntry == null) {
+                    this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 0);
+                    return;
+                }
+                // next hop not in the ARP cache; hold the packet while it is resolved
+                var count = routeEntry.getNextHopCount();
+                var index = (count == 1) ? 0 : RouteEntry.selectNextHop(FlowHash.hash(header), count);
+                var outIface = routeEntry.getInterface(index);
+                if (outIface == inIface) {
+                    return;
+                }
+                var gateway = routeEntry.getGatewayAddress(index);
+                this.arpResolver.enqueue(gateway != 0 ? gateway : header.getDestinationAddress(), outIface,
+                        etherPacket, inIface);
                 return;
             }
 
-            if (routeEntry.getInterface() == inIface) {
+            // pick one of the equal-cost next hops, the same for every packet of a flow;
+            // hashing decodes the transport header, so skip it with a single next hop
+            var nextHop = (resolved.getNextHopCount() == 1) ? 0 : resolved.select(FlowHash.hash(header));
+            var outIface = resolved.getInterface(nextHop);
+            if (outIface == inIface) {
                 return;
             }
 
-            var nextHop = routeEntry.getGatewayAddress() != 0 ? routeEntry.getGatewayAddress() : header.getDestinationAddress();
+            etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+            etherPacket.setDestinationMACAddress(resolved.getMacBytes(nextHop));
+            this.sendPacket(etherPacket, outIface);
+            resolved.getCounter().record(header.getTotalLength() & 0xffff);
+            this.arpCache.touch(resolved.getNextHopAddress(nextHop));
+        }
+    }
 
-            var arpEntry = this.arpCache.lookup(nextHop);
-            if (arpEntry == null) {
-                this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 1);
-                return;
+    /**
+     * Forward a transit IPv4 packet without decoding it. The header checksum
+     * is verified in place, the TTL is decremented with an incremental
+     * checksum update and the MACs are rewritten in the received buffer.
+     * ICMP errors (TTL expiry, no route, no ARP entry, unreachable port) are
+     * built straight from the received bytes. RIP, echo requests and anything
+     * else addressed to the router are left to
+     * {@link #handlePacket(Ethernet, Iface)}.
+     *
+     * @param frame   buffer holding the frame
+     * @param offset  offset of the frame in the buffer
+     * @param length  length of the frame
+     * @param inIface the interface on which the frame was received
+     * @return true if the frame was forwarded or dropped
+     */
+    @Override
+    public boolean handleRawPacket(byte[] frame, int offset, int length, Iface inIface) {
+        if (!this.fastPath || length < 14 + 20) {
+            return false;
+        }
+        if (getShort(frame, offset + 12) != Ethernet.TYPE_IPv4) {
+            return false;
+        }
+
+        var ip = offset + 14;
+        var versionAndLength = frame[ip] & 0xff;
+        var headerLength = (versionAndLength & 0xf) * 4;
+        if ((versionAndLength >> 4) != 4 || headerLength < 20 || 14 + headerLength > length) {
+            return false;
+        }
+
+        var protocol = frame[ip + 9];
+        if (protocol == IPv4.PROTOCOL_UDP && 14 + headerLength + 4 <= length
+                && getShort(frame, ip + headerLength + 2) == UDP.RIP_PORT) {
+            return false;
+        }
+
+        // verify check sum
+        if (IPv4.computeChecksum(frame, ip, headerLength) != 0) {
+            return true;
+        }
+
+        var ipLength = length - 14;
+        var ttl = frame[ip + 8] & 0xff;
+        if (ttl <= 1) {
+            this.sendIcmpError(frame, ip, ipLength, inIface, (byte) 11, (byte) 0);
+            return true;
+        }
+
+        var destAddr = getInt(frame, ip + 16);
+        if (this.localAddresses.containsIp(destAddr)) {
+            if (protocol == IPv4.PROTOCOL_TCP || protocol == IPv4.PROTOCOL_UDP) {
+                this.sendIcmpError(frame, ip, ipLength, inIface, (byte) 3, (byte) 3);
+                return true;
             }
+            return false;
+        }
 
-            etherPacket.setSourceMACAddress(routeEntry.getInterface().getMacAddress().toBytes());
-            etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
-            this.sendPacket(etherPacket, routeEntry.getInterface());
+        var resolved = this.destinationCache.lookup(destAddr);
+        if (resolved == null) {
+            var routeEntry = this.routeTable.lookup(destAddr);
+            if (routeEntry == null) {
+                this.sendIcmpError(frame, ip, ipLength, inIface, (byte) 3, (byte) 0);
+                return true;
+            }
+            // next hop not in the ARP cache; the decoded path holds the packet while it is resolved
+            return false;
+        }
+        var nextHop = (resolved.getNextHopCount() == 1) ? 0 : resolved.select(FlowHash.hash(frame, offset, length));
+        var outIface = resolved.getInterface(nextHop);
+        if (outIface == inIface) {
+            return true;
         }
+
+        // decrement TTL and patch the checksum (RFC 1624)
+        var oldWord = getShort(frame, ip + 8);
+        frame[ip + 8] = (byte) (ttl - 1);
+        var newWord = getShort(frame, ip + 8);
+        putShort(frame, ip + 10, IPv4.updateChecksum(getShort(frame, ip + 10), oldWord, newWord));
+
+        // count the IPv4 total length, not Ethernet padding, as the decoded path does
+        var totalLength = getShort(frame, ip + 2) & 0xffff;
+        putMac(frame, offset, resolved.getMacLong(nextHop));
+        putMac(frame, offset + MACAddress.MAC_ADDRESS_LENGTH, outIface.getMacAddress().toLong());
+        this.sendRawPacket(frame, offset, length, outIface);
+        resolved.getCounter().record(totalLength);
+        this.arpCache.touch(resolved.getNextHopAddress(nextHop));
+        return true;
+    }
+
+    private static short getShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    private static void putShort(byte[] data, int offset, short value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void putMac(byte[] data, int offset, long mac) {
+        for (var i = MACAddress.MAC_ADDRESS_LENGTH - 1; i >= 0; i--) {
+            data[offset + i] = (byte) mac;
+            mac >>>= 8;
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
     }
 
     private void sendICMP(Ethernet etherPacket, Iface outIface, byte type, byte code) {
         var ipv4 = (IPv4) etherPacket.getPayload();
-        var packet = new Ethernet();
-        packet.setSourceMACAddress(outIface.getMacAddress().toBytes());
-        packet.setEtherType(Ethernet.TYPE_IPv4);
+        if (!this.icmpLimiter.allow(ipv4.getSourceAddress())) {
+            return;
+        }
+        var bytes = ipv4.serialize();
+        this.buildAndSendIcmpError(bytes, 0, bytes.length, outIface, type, code);
+    }
 
-        var newIp = new IPv4();
-        newIp.setTtl((byte) 64);
-        newIp.setSourceAddress(outIface.getIpAddress());
-        newIp.setDestinationAddress(ipv4.getSourceAddress());
-        newIp.setProtocol(IPv4.PROTOCOL_ICMP);
-        packet.setPayload(newIp);
+    /**
+     * Send an ICMP error about a packet still in its received bytes, subject
+     * to rate limiting.
+     *
+     * @param packet   buffer holding the offending IPv4 packet
+     * @param ipOffset offset of the IPv4 header in the buffer
+     * @param ipLength bytes of the IPv4 packet available in the buffer
+     * @param outIface interface the packet arrived on and the error is sent out of
+     */
+    private void sendIcmpError(byte[] packet, int ipOffset, int ipLength, Iface outIface, byte type, byte code) {
+        if (!this.icmpLimiter.allow(getInt(packet, ipOffset + 12))) {
+            return;
+        }
+        this.buildAndSendIcmpError(packet, ipOffset, ipLength, outIface, type, code);
+    }
 
-        var icmp = new ICMP();
-        icmp.setIcmpType(type);
-        icmp.setIcmpCode(code);
-        newIp.setPayload(icmp);
+    private void buildAndSendIcmpError(byte[] packet, int ipOffset, int ipLength, Iface outIface,
+                                       byte type, byte code) {
+        var srcAddr = getInt(packet, ipOffset + 12);
+        var resolved = this.destinationCache.lookup(srcAddr);
+        if (resolved == null) {
+            return;
+        }
+        var frame = IcmpTemplate.build(outIface, resolved.getMacBytes(0), srcAddr, type, code,
+                packet, ipOffset, ipLength);
+        this.sendRawPacket(frame, IcmpTemplate.FRAME_OFFSET, frame.length - IcmpTemplate.FRAME_OFFSET, outIface);
+    }
 
-        var len = ipv4.getHeaderLength() * 4;
-        var bytes = new byte[4 + len + 8];
-        Arrays.fill(bytes, (byte) 0);
-        var oriBytes = ipv4.serialize();
-        System.arraycopy(oriBytes, 0, bytes, 4, len + 8);
+    /**
+     * Tell the sender of a packet that its destination could not be reached
+     * because the next hop's MAC address could not be resolved.
+     *
+     * @param etherPacket the packet that was dropped
+     * @param inIface     the interface the packet arrived on
+     */
+    void sendHostUnreachable(Ethernet etherPacket, Iface inIface) {
+        this.sendICMP(etherPacket, inIface, (byte) 3, (byte) 1);
+    }
 
-        var data = new Data(bytes);
+    // answer ARP requests for the interface's address and learn from ARP packets sent to it
+    private void handleArp(Ethernet etherPacket, Iface inIface) {
+        var arp = (ARP) etherPacket.getPayload();
+        if (arp.getProtocolType() != ARP.PROTO_TYPE_IP
+                || IPv4.toIPv4Address(arp.getTargetProtocolAddress()) != inIface.getIpAddress()) {
+            return;
+        }
 
-        icmp.setPayload(data);
+        // the sender is talking to the router, so its address is worth keeping
+        var senderIp = IPv4.toIPv4Address(arp.getSenderProtocolAddress());
+        this.arpResolver.learn(senderIp, MACAddress.valueOf(arp.getSenderHardwareAddress()));
 
-        var mac = this.nextHop(ipv4.getSourceAddress());
-        if (mac == null) {
+        if (arp.getOpCode() != ARP.OP_REQUEST) {
             return;
         }
+        var reply = new ARP();
+        reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+        reply.setProtocolType(ARP.PROTO_TYPE_IP);
+        reply.setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
+        reply.setProtocolAddressLength((byte) 4);
+        reply.setOpCode(ARP.OP_REPLY);
+        reply.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
+        reply.setSenderProtocolAddress(inIface.getIpAddress());
+        reply.setTargetHardwareAddress(arp.getSenderHardwareAddress());
+        reply.setTargetProtocolAddress(arp.getSenderProtocolAddress());
 
-        packet.setDestinationMACAddress(mac.toBytes());
-        this.sendPacket(packet, outIface);
+        var packet = new Ethernet();
+        packet.setEtherType(Ethernet.TYPE_ARP);
+        packet.setSourceMACAddress(inIface.getMacAddress().toBytes());
+        packet.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+        packet.setPayload(reply);
+        this.sendPacket(packet, inIface);
     }
 
     private MACAddress nextHop(int destAddr) {
-        var routeEntry = this.routeTable.lookup(destAddr);
-        if (routeEntry == null) {
-            return null;
-        }
-        var nextHop = routeEntry.getGatewayAddress() != 0 ? routeEntry.getGatewayAddress() : destAddr;
-        var arpEntry = this.arpCache.lookup(nextHop);
-        if (arpEntry == null) {
-            return null;
-        }
-        return arpEntry.getMac();
+        var resolved = this.destinationCache.lookup(destAddr);
+        return resolved == null ? null : resolved.getMac();
     }
 
     private void sendEcho(Ethernet etherPacket, Iface outIface) {
@@ -308,13 +717,7 @@ public class Router extends Device {
     }
 
     private Boolean hasDestAddress(Ethernet etherPacket) {
-        var destAddr = etherPacket.getDestinationMAC();
-        for (var face : interfaces.values()) {
-            if (face.getMacAddress().equals(destAddr)) {
-                return true;
-            }
-        }
-        return false;
+        return this.localAddresses.containsMac(etherPacket.getDestinationMAC().toLong());
     }
 
     // handle RIP packet
@@ -325,58 +728,250 @@ public class Router extends Device {
 
         if (rip.getCommand() == RIPv2.COMMAND_REQUEST) {
             this.sendRIP(inIface, ip.getSourceAddress(), etherPacket.getSourceMACAddress(), RIPv2.COMMAND_RESPONSE);
-            System.out.println("RIPv2 request received from " + IPv4.fromIPv4Address(ip.getSourceAddress()) + " to " + IPv4.fromIPv4Address(ip.getDestinationAddress()));
+            Log.debug("RIPv2 request received from %s to %s", Log.ip(ip.getSourceAddress()),
+                    Log.ip(ip.getDestinationAddress()));
         }
         if (rip.getCommand() == RIPv2.COMMAND_RESPONSE) {
-            System.out.println("RIPv2 response received from " + IPv4.fromIPv4Address(ip.getSourceAddress()) + " to " + IPv4.fromIPv4Address(ip.getDestinationAddress()));
+            Log.debug("RIPv2 response received from %s to %s", Log.ip(ip.getSourceAddress()),
+                    Log.ip(ip.getDestinationAddress()));
             boolean isChanged = false;
             synchronized (this.ripTable) {
-                for (var entry : rip.getEntries()) {
-                    var key = new RipKey(entry.getAddress(), entry.getSubnetMask());
-                    var metric = Integer.max(entry.getMetric() + 1, 16);
-                    var ripEntry = this.ripTable.get(key);
-                    if (ripEntry == null || metric < ripEntry.getMetric()) {
-                        this.ripTable.put(key, new RipEntry(metric, System.currentTimeMillis()));
-                        if (this.routeTable.lookup(entry.getAddress() & entry.getSubnetMask()) != null) {
-                            routeTable.remove(entry.getAddress(), entry.getSubnetMask());
+                // publish every change in the message as one snapshot
+                var update = this.routeTable.beginUpdate();
+                try {
+                    for (var entry : rip.getEntries()) {
+                        var key = new RipKey(entry.getAddress(), entry.getSubnetMask());
+                        var metric = Integer.min(entry.getMetric() + 1, 16);
+                        var ripEntry = this.ripTable.get(key);
+                        if (metric >= 16) {
+                            // withdrawal (RFC 2453 3.9.2): only from a next hop the route goes through
+                            var hop = (ripEntry == null) ? null
+                                    : ripEntry.findHop(entry.getNextHopAddress(), inIface);
+                            if (hop != null && this.dropRipHop(update, ripEntry, hop)) {
+                                isChanged = true;
+                                Log.debug("withdraw from route table: %s/%s", Log.ip(entry.getAddress()),
+                                        Log.ip(entry.getSubnetMask()));
+                            }
+                            continue;
+                        }
+                        if (ripEntry == null || metric < ripEntry.getMetric()) {
+                            ripEntry = this.refreshRip(key, ripEntry, metric);
+                            // the better path replaces every next hop the route had
+                            for (var hop : ripEntry.hops) {
+                                this.ripHopTimers.cancel(hop.timeout);
+                            }
+                            ripEntry.hops.clear();
+                            this.refreshRipHop(key, ripEntry, entry.getNextHopAddress(), inIface);
+                            Log.debug("insert to route table: %s/%s %d", Log.ip(entry.getAddress()),
+                                    Log.ip(entry.getSubnetMask()), metric);
+                            update.insert(entry.getAddress(), entry.getNextHopAddress(), entry.getSubnetMask(), inIface);
+                            this.ripChanges.add(key);
+                            isChanged = true;
+                        } else if (metric == ripEntry.getMetric()) {
+                            // equal-cost path: keep it alongside the existing next hops
+                            this.refreshRip(key, ripEntry, metric);
+                            this.refreshRipHop(key, ripEntry, entry.getNextHopAddress(), inIface);
+                            if (update.addNextHop(entry.getAddress(), entry.getNextHopAddress(),
+                                    entry.getSubnetMask(), inIface)) {
+                                Log.debug("add next hop to route table: %s/%s %d", Log.ip(entry.getAddress()),
+                                        Log.ip(entry.getSubnetMask()), metric);
+                                this.ripChanges.add(key);
+                                isChanged = true;
+                            }
                         }
-                        System.out.println("insert to route table: " + entry.getAddress() + "/" + entry.getSubnetMask() + " " + metric);
-                        routeTable.insert(entry.getAddress(), entry.getNextHopAddress(), entry.getSubnetMask(), inIface);
-                        isChanged = true;
                     }
+                } finally {
+                    update.commit();
                 }
                 if (isChanged) {
-                    this.SendUnsolicitedResponse();
+                    this.sendTriggeredUpdate();
                 }
             }
         }
     }
 
+    // record a route just advertised, stopping any garbage collection of it; the caller holds the rip table
+    private RipEntry refreshRip(RipKey key, RipEntry ripEntry, int metric) {
+        var now = System.currentTimeMillis();
+        if (ripEntry == null || ripEntry.getMetric() != metric) {
+            this.ripGeneration++;
+        }
+        if (ripEntry == null) {
+            ripEntry = new RipEntry(metric, now);
+            this.ripTable.put(key, ripEntry);
+        } else {
+            ripEntry.setMetric(metric);
+            ripEntry.setTimeStamp(now);
+        }
+        if (ripEntry.timeout != null) {
+            this.ripTimers.cancel(ripEntry.timeout);
+        }
+        return ripEntry;
+    }
+
+    // restart the timeout of the next hop a route was just advertised through; the caller holds the rip table
+    private void refreshRipHop(RipKey key, RipEntry ripEntry, int gateway, Iface iface) {
+        var deadline = System.currentTimeMillis() + RIP_TIMEOUT_MS;
+        var hop = ripEntry.findHop(gateway, iface);
+        if (hop == null) {
+            hop = new RipHop(key, gateway, iface);
+            hop.timeout = this.ripHopTimers.schedule(hop, deadline);
+            ripEntry.hops.add(hop);
+        } else {
+            this.ripHopTimers.reschedule(hop.timeout, deadline);
+        }
+    }
+
+    /**
+     * Drop a next hop that timed out or withdrew the route. Once none is
+     * left the route leaves the route table and is held with metric 16 until
+     * its garbage-collection timer removes it from the rip table. The caller
+     * holds the rip table.
+     *
+     * @return true if the route lost its last next hop
+     */
+    private boolean dropRipHop(RouteTable.Update update, RipEntry ripEntry, RipHop hop) {
+        this.ripHopTimers.cancel(hop.timeout);
+        ripEntry.hops.remove(hop);
+        update.removeNextHop(hop.key.ip, hop.key.mask, hop.gateway, hop.iface);
+        if (!ripEntry.hops.isEmpty()) {
+            return false;
+        }
+        update.remove(hop.key.ip, hop.key.mask);
+        ripEntry.setMetric(16);
+        this.ripGeneration++;
+        var deadline = System.currentTimeMillis() + RIP_GARBAGE_COLLECTION_MS;
+        if (ripEntry.timeout == null) {
+            ripEntry.timeout = this.ripTimers.schedule(hop.key, deadline);
+        } else {
+            this.ripTimers.reschedule(ripEntry.timeout, deadline);
+        }
+        this.ripChanges.add(hop.key);
+        return true;
+    }
+
     private void sendRIP(Iface inIface, int destIp, byte[] destAddr, byte command) {
-        var rip = this.newRipPacket(inIface, destIp, destAddr, command);
+        if (command == RIPv2.COMMAND_RESPONSE) {
+            var entries = this.newRipEntries(this.routeTable.getEntries(), inIface);
+            for (int i = 0; i < entries.size(); i += RIP_MAX_ENTRIES) {
+                this.sendRipEntries(inIface, destIp, destAddr, entries.subList(i,
+                        Math.min(i + RIP_MAX_ENTRIES, entries.size())));
+            }
+            return;
+        }
+        var rip = this.newRipPacket(inIface, destIp, destAddr, command, new ArrayList<>());
+        this.sendPacket(rip, inIface);
+    }
+
+    // send one response message of at most RIP_MAX_ENTRIES entries
+    private void sendRipEntries(Iface inIface, int destIp, byte[] destAddr, List<RIPv2Entry> entries) {
+        var rip = this.newRipPacket(inIface, destIp, destAddr, RIPv2.COMMAND_RESPONSE, new ArrayList<>(entries));
         this.sendPacket(rip, inIface);
     }
 
     // send RIP packet to interfaces and update riptable
     public void runRip() {
+        var update = this.routeTable.beginUpdate();
+        try {
+            for (var face : interfaces.values()) {
+                int mask = face.getSubnetMask();
+                int ip = face.getIpAddress() & mask;
+                update.insert(ip, 0, mask, face);
+                this.ripTable.put(new RipKey(ip, mask), new RipEntry(0, -1));
+            }
+        } finally {
+            update.commit();
+        }
         for (var face : interfaces.values()) {
-            int mask = face.getSubnetMask();
-            int ip = face.getIpAddress() & mask;
-            this.routeTable.insert(ip, 0, mask, face);
-            this.ripTable.put(new RipKey(ip, mask), new RipEntry(0, -1));
             this.sendRIP(face, IPv4.toIPv4Address("240.0.0.9"), Router.broadcastMac, RIPv2.COMMAND_REQUEST);
         }
-        this.timer.schedule(new SendUnsolicitedResponse(), 0, 10 * 1000);
-        this.timer.schedule(new RemoveOutdatedRip(), 0, 30 * 1000);
+        this.timer.schedule(new SendUnsolicitedResponse(), 0);
+        // run just after each tick boundary, so route timers fire within a tick of their deadline
+        var sinceTick = System.currentTimeMillis() % RIP_TICK_MS;
+        this.timer.scheduleAtFixedRate(new RemoveOutdatedRip(), RIP_TICK_MS - sinceTick, RIP_TICK_MS);
     }
 
+    // start a paced full update and schedule the next one after a jittered interval
     private void SendUnsolicitedResponse() {
+        if (this.ripPacer != null) {
+            this.ripPacer.cancel();
+        }
+        this.ripPacer = new RipPacer(new ArrayList<>(interfaces.values()));
+        this.timer.schedule(this.ripPacer, 0, this.ripPacer.gap);
+
+        var jitter = ThreadLocalRandom.current().nextLong(-RIP_UPDATE_JITTER_MS, RIP_UPDATE_JITTER_MS + 1);
+        this.timer.schedule(new SendUnsolicitedResponse(), RIP_UPDATE_INTERVAL_MS + jitter);
+    }
+
+    // send only the prefixes changed since the last triggered update; removed ones go out with metric 16
+    private void sendTriggeredUpdate() {
+        List<RipKey> changes;
+        synchronized (this.ripTable) {
+            if (this.ripChanges.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<>(this.ripChanges);
+            this.ripChanges.clear();
+        }
         for (var face : interfaces.values()) {
-            this.sendRIP(face, IPv4.toIPv4Address("240.0.0.9"), Router.broadcastMac, RIPv2.COMMAND_RESPONSE);
+            var entries = new ArrayList<RIPv2Entry>(changes.size());
+            for (var key : changes) {
+                var ripEntry = this.ripTable.get(key);
+                var ripV2 = new RIPv2Entry();
+                ripV2.setAddress(key.ip);
+                ripV2.setSubnetMask(key.mask);
+                ripV2.setMetric(ripEntry == null ? 16 : ripEntry.getMetric());
+                ripV2.setNextHopAddress(face.getIpAddress());
+                entries.add(ripV2);
+            }
+            for (int i = 0; i < entries.size(); i += RIP_MAX_ENTRIES) {
+                this.sendRipEntries(face, IPv4.toIPv4Address("240.0.0.9"), Router.broadcastMac,
+                        entries.subList(i, Math.min(i + RIP_MAX_ENTRIES, entries.size())));
+            }
+        }
+        Log.debug("RIP triggered update with %d changed prefixes", changes.size());
+    }
+
+    // the full response out an interface, serialized again only if something it advertises changed
+    private List<byte[]> getRipResponse(Iface face) {
+        var routeGeneration = this.routeTable.getGeneration();
+        var ripGeneration = this.ripGeneration;
+        var cached = this.ripResponses.get(face);
+        if (cached != null && cached.routeGeneration == routeGeneration && cached.ripGeneration == ripGeneration) {
+            return cached.frames;
+        }
+        var entries = this.newRipEntries(this.routeTable.getEntries(), face);
+        var frames = new ArrayList<byte[]>();
+        for (int i = 0; i < entries.size(); i += RIP_MAX_ENTRIES) {
+            var segment = new ArrayList<>(entries.subList(i, Math.min(i + RIP_MAX_ENTRIES, entries.size())));
+            var packet = this.newRipPacket(face, IPv4.toIPv4Address("240.0.0.9"), Router.broadcastMac,
+                    RIPv2.COMMAND_RESPONSE, segment).serialize();
+            frames.add(CommandPacket.serializeRaw(packet, face.getName()));
+        }
+        this.ripResponses.put(face, new RipResponse(routeGeneration, ripGeneration, frames));
+        return frames;
+    }
+
+    // advertise routes out an interface; routes that left the rip table since the list was taken are skipped
+    private List<RIPv2Entry> newRipEntries(List<RouteEntry> routes, Iface inIface) {
+        var entries = new ArrayList<RIPv2Entry>(routes.size());
+        for (var entry : routes) {
+            var ripEntry = ripTable.get(new RipKey(entry.getDestinationAddress(), entry.getMaskAddress()));
+            if (ripEntry == null) {
+                continue;
+            }
+            var ripV2 = new RIPv2Entry();
+            ripV2.setAddress(entry.getDestinationAddress());
+            ripV2.setMetric(ripEntry.getMetric());
+            ripV2.setSubnetMask(entry.getMaskAddress());
+            ripV2.setNextHopAddress(inIface.getIpAddress());
+            entries.add(ripV2);
         }
+        return entries;
     }
 
-    private Ethernet newRipPacket(Iface inIface, int destIP, byte[] destMac, byte command) {
+    private Ethernet newRipPacket(Iface inIface, int destIP, byte[] destMac, byte command,
+                                  List<RIPv2Entry> entries) {
         var ether = new Ethernet();
         ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
         ether.setEtherType(Ethernet.TYPE_IPv4);
@@ -394,19 +989,7 @@ public class Router extends Device {
 
         var rip = new RIPv2();
         rip.setCommand(command);
-        if (command == RIPv2.COMMAND_RESPONSE) {
-            synchronized (this.routeTable) {
-                for (var entry : this.routeTable.getEntries()) {
-                    var ripV2 = new RIPv2Entry();
-                    ripV2.setAddress(entry.getDestinationAddress());
-                    var key = new RipKey(entry.getDestinationAddress(), entry.getMaskAddress());
-                    ripV2.setMetric(ripTable.get(key).getMetric());
-                    ripV2.setSubnetMask(entry.getMaskAddress());
-                    ripV2.setNextHopAddress(inIface.getIpAddress());
-                    rip.addEntry(ripV2);
-                }
-            }
-        }
+        rip.setEntries(entries);
 
         udp.setPayload(rip);
         newIp.setPayload(udp);
@@ -422,23 +1005,87 @@ public class Router extends Device {
         }
     }
 
+    /**
+     * Sends one full update as the cached RIP_MAX_ENTRIES-sized frames,
+     * rotating over the interfaces and spread evenly over
+     * RIP_PACING_WINDOW_MS. Runs every gap milliseconds and sends burst
+     * messages each time, until done.
+     */
+    class RipPacer extends TimerTask {
+        private final List<Iface> faces;
+        private final List<List<byte[]>> frames;
+        private final int messages;
+        private final long gap;
+        private final int burst;
+        private int next;
+
+        RipPacer(List<Iface> faces) {
+            this.faces = faces;
+            this.frames = new ArrayList<>(faces.size());
+            var segments = 0;
+            for (var face : faces) {
+                var response = getRipResponse(face);
+                this.frames.add(response);
+                segments = Math.max(segments, response.size());
+            }
+            this.messages = segments * faces.size();
+            this.gap = Math.max(1, Math.min(RIP_MAX_GAP_MS, RIP_PACING_WINDOW_MS / Math.max(1, this.messages)));
+            this.burst = (int) Math.max(1, (this.messages * this.gap + RIP_PACING_WINDOW_MS - 1) / RIP_PACING_WINDOW_MS);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < this.burst && this.next < this.messages; i++, this.next++) {
+                var index = this.next % this.faces.size();
+                var segment = this.next / this.faces.size();
+                var response = this.frames.get(index);
+                if (segment < response.size()) {
+                    sendCommand(response.get(segment), this.faces.get(index));
+                }
+            }
+            if (this.next >= this.messages) {
+                this.cancel();
+            }
+        }
+    }
+
+    /**
+     * Runs every RIP_TICK_MS and handles the route timers that are due: a
+     * timed-out next hop leaves its route, a route without next hops leaves
+     * the route table and is held with metric 16 until its garbage-collection
+     * timer removes it from the rip table.
+     */
     class RemoveOutdatedRip extends TimerTask {
         @Override
         public void run() {
             synchronized (ripTable) {
+                var now = System.currentTimeMillis();
+                var expired = new ArrayList<RipHop>();
+                ripHopTimers.advance(now, expired::add);
+                var due = new ArrayList<RipKey>();
+                ripTimers.advance(now, due::add);
+                if (expired.isEmpty() && due.isEmpty()) {
+                    return;
+                }
                 boolean isChanged = false;
-                var iter = ripTable.entrySet().iterator();
-                while (iter.hasNext()) {
-                    var entry = iter.next();
-                    if (entry.getValue().getTimeStamp() != -1 && System.currentTimeMillis() - entry.getValue().getTimeStamp() >= 30 * 1000) {
-                        routeTable.remove(entry.getKey().ip, entry.getKey().mask);
-                        iter.remove();
-                        isChanged = true;
-                        System.out.println("remove timeout entry" + IPv4.fromIPv4Address(entry.getKey().ip));
+                var update = routeTable.beginUpdate();
+                try {
+                    for (var hop : expired) {
+                        if (dropRipHop(update, ripTable.get(hop.key), hop)) {
+                            isChanged = true;
+                            Log.info("remove timeout entry %s", Log.ip(hop.key.ip));
+                        } else {
+                            Log.debug("remove timeout next hop %s of %s", Log.ip(hop.gateway), Log.ip(hop.key.ip));
+                        }
+                    }
+                    for (var key : due) {
+                        ripTable.remove(key);
                     }
+                } finally {
+                    update.commit();
                 }
                 if (isChanged) {
-                    SendUnsolicitedResponse();
+                    sendTriggeredUpdate();
                 }
             }
         }
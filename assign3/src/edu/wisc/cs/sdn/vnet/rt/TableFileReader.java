@@ -0,0 +1,265 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cursor over a memory-mapped route table or ARP cache file. Text files are
+ * parsed field by field straight from the mapping, with no regular
+ * expressions and no per-line strings; binary snapshots are read with
+ * absolute gets. Parse errors are reported as IllegalArgumentException.
+ */
+public class TableFileReader {
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+    private int line;
+
+    private TableFileReader(ByteBuffer buf) {
+        this.buf = buf;
+        this.limit = buf.limit();
+        this.pos = 0;
+        this.line = 1;
+    }
+
+    /**
+     * Map a file for reading.
+     *
+     * @param filename name of the file
+     * @return a reader positioned at the start of the file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static TableFileReader open(String filename) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TableFileReader(mapped);
+        }
+    }
+
+    /**
+     * @param magic magic number a binary snapshot starts with
+     * @return true if the file starts with the magic number
+     */
+    public boolean hasMagic(int magic) {
+        return this.limit >= 4 && this.buf.getInt(0) == magic;
+    }
+
+    /* Binary snapshots */
+
+    /**
+     * @return the 4-byte integer at the cursor; the cursor moves past it
+     */
+    public int readInt() {
+        this.require(4);
+        int value = this.buf.getInt(this.pos);
+        this.pos += 4;
+        return value;
+    }
+
+    /**
+     * Read a record count, checking it against the bytes left.
+     *
+     * @param recordSize fewest bytes each record takes
+     * @return the 4-byte count at the cursor; the cursor moves past it
+     */
+    public int readCount(int recordSize) {
+        int count = this.readInt();
+        if (count < 0 || (long) count * recordSize > this.limit - this.pos) {
+            throw new IllegalArgumentException("invalid count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the byte at the cursor, as an unsigned value; the cursor moves
+     * past it
+     */
+    public int readByte() {
+        this.require(1);
+        return this.buf.get(this.pos++) & 0xff;
+    }
+
+    /**
+     * @param dst filled with the bytes at the cursor; the cursor moves past
+     *            them
+     */
+    public void readBytes(byte[] dst) {
+        this.require(dst.length);
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = this.buf.get(this.pos + i);
+        }
+        this.pos += dst.length;
+    }
+
+    private void require(int bytes) {
+        if (this.limit - this.pos < bytes) {
+            throw new IllegalArgumentException("truncated snapshot");
+        }
+    }
+
+    /* Text files */
+
+    /**
+     * Skip blank lines.
+     *
+     * @return true if there is another non-blank line
+     */
+    public boolean nextLine() {
+        while (this.pos < this.limit) {
+            byte b = this.buf.get(this.pos);
+            if (b == '\n') {
+                this.line++;
+            } else if (b != '\r' && b != ' ' && b != '\t') {
+                return true;
+            }
+            this.pos++;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of the line the cursor is on
+     */
+    public int getLine() {
+        return this.line;
+    }
+
+    /**
+     * Parse a dotted-quad IPv4 address, then skip the spaces after it.
+     *
+     * @return the address
+     */
+    public int parseIp() {
+        int ip = 0;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                this.expect('.');
+            }
+            int value = 0;
+            int digits = 0;
+            while (this.pos < this.limit && isDigit(this.buf.get(this.pos)) && digits < 3) {
+                value = value * 10 + (this.buf.get(this.pos++) - '0');
+                digits++;
+            }
+            if (0 == digits || value > 255) {
+                throw this.error("invalid IP address");
+            }
+            ip = (ip << 8) | value;
+        }
+        this.endField();
+        return ip;
+    }
+
+    /**
+     * Parse a colon-separated MAC address, then skip the spaces after it.
+     *
+     * @return the address in the lower 48 bits
+     */
+    public long parseMac() {
+        long mac = 0;
+        for (int octet = 0; octet < 6; octet++) {
+            if (octet > 0) {
+                this.expect(':');
+            }
+            int high = this.hexDigit();
+            int low = this.hexDigit();
+            mac = (mac << 8) | (high << 4) | low;
+        }
+        this.endField();
+        return mac;
+    }
+
+    /**
+     * Parse an alphanumeric name, then skip the spaces after it.
+     *
+     * @return the name
+     */
+    public String parseName() {
+        int start = this.pos;
+        while (this.pos < this.limit && isAlphanumeric(this.buf.get(this.pos))) {
+            this.pos++;
+        }
+        if (this.pos == start) {
+            throw this.error("invalid name");
+        }
+        byte[] name = new byte[this.pos - start];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = this.buf.get(start + i);
+        }
+        this.endField();
+        return new String(name);
+    }
+
+    /**
+     * Check that nothing but spaces remains on the line.
+     */
+    public void endLine() {
+        if (this.pos < this.limit) {
+            byte b = this.buf.get(this.pos);
+            if (b != '\n' && b != '\r') {
+                throw this.error("unexpected text at end of line");
+            }
+        }
+    }
+
+    /**
+     * @param message description of the problem
+     * @return an exception reporting the problem at the current line
+     */
+    public IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(String.format("line %d: %s", this.line, message));
+    }
+
+    private void expect(char c) {
+        if (this.pos >= this.limit || this.buf.get(this.pos) != c) {
+            throw this.error("expected '" + c + "'");
+        }
+        this.pos++;
+    }
+
+    private int hexDigit() {
+        if (this.pos >= this.limit) {
+            throw this.error("invalid MAC address");
+        }
+        int c = this.buf.get(this.pos++);
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        throw this.error("invalid MAC address");
+    }
+
+    /**
+     * Fields must be followed by a space or the end of the line
+     */
+    private void endField() {
+        if (this.pos >= this.limit) {
+            return;
+        }
+        byte b = this.buf.get(this.pos);
+        if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+            throw this.error("unexpected character '" + (char) b + "'");
+        }
+        while (this.pos < this.limit && (this.buf.get(this.pos) == ' ' || this.buf.get(this.pos) == '\t')) {
+            this.pos++;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAlphanumeric(byte b) {
+        return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+}
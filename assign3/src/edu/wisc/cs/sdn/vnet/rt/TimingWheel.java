@@ -0,0 +1,170 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: timers are kept in a ring of slots by the tick they
+ * are due on, so scheduling, rescheduling and cancelling are O(1), and each
+ * tick only visits the timers hashed to its slot. A timer fires on the first
+ * tick at or after its deadline, so at most one tick late. Not thread-safe;
+ * callers synchronize.
+ *
+ * @param <T> item a timer carries
+ */
+public class TimingWheel<T> {
+    /**
+     * A scheduled timer. Belongs to one wheel, and is in at most one of its
+     * slots at a time.
+     *
+     * @param <T> item the timer carries
+     */
+    public static class Timeout<T> {
+        private final T item;
+        private long tick;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private boolean scheduled;
+
+        private Timeout(T item) {
+            this.item = item;
+        }
+
+        /**
+         * @return the item the timer carries
+         */
+        public T getItem() {
+            return this.item;
+        }
+
+        /**
+         * @return whether the timer is waiting to fire
+         */
+        public boolean isScheduled() {
+            return this.scheduled;
+        }
+    }
+
+    private final Timeout<T>[] slots;
+    private final int mask;
+    private final long tickMs;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param slots  number of slots; rounded up to a power of two. Timers due
+     *               more than this many ticks ahead share slots with nearer
+     *               ones and are skipped until their round comes
+     * @param tickMs length of a tick in milliseconds
+     * @param now    current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(int slots, long tickMs, long now) {
+        int capacity = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = (Timeout<T>[]) new Timeout<?>[capacity];
+        this.mask = capacity - 1;
+        this.tickMs = tickMs;
+        this.currentTick = now / tickMs;
+    }
+
+    /**
+     * @param item     item to hand back when the timer fires
+     * @param deadline time in milliseconds the timer is due
+     * @return the timer
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> timeout = new Timeout<T>(item);
+        this.insert(timeout, deadline);
+        return timeout;
+    }
+
+    /**
+     * Move a timer to a new deadline, scheduling it again if it fired or was
+     * cancelled.
+     *
+     * @param timeout  a timer of this wheel
+     * @param deadline time in milliseconds the timer is due
+     */
+    public void reschedule(Timeout<T> timeout, long deadline) {
+        this.cancel(timeout);
+        this.insert(timeout, deadline);
+    }
+
+    /**
+     * @param timeout a timer of this wheel; nothing happens if it is not
+     *                scheduled
+     */
+    public void cancel(Timeout<T> timeout) {
+        if (!timeout.scheduled) {
+            return;
+        }
+        int slot = (int) timeout.tick & this.mask;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            this.slots[slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        this.size--;
+    }
+
+    /**
+     * Run the ticks up to the current time, firing the timers due by then.
+     * A fired timer is no longer scheduled, so the handler may reschedule
+     * it.
+     *
+     * @param now     current time in milliseconds
+     * @param expired called with the item of each timer that fires
+     */
+    public void advance(long now, Consumer<? super T> expired) {
+        long nowTick = now / this.tickMs;
+        while (this.currentTick < nowTick) {
+            this.currentTick++;
+            int slot = (int) this.currentTick & this.mask;
+            // Unlink the due timers before running handlers, which may change the slot
+            Timeout<T> due = null;
+            Timeout<T> timeout = this.slots[slot];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.tick <= this.currentTick) {
+                    this.cancel(timeout);
+                    timeout.next = due;
+                    due = timeout;
+                }
+                timeout = next;
+            }
+            while (due != null) {
+                Timeout<T> next = due.next;
+                due.next = null;
+                expired.accept(due.item);
+                due = next;
+            }
+        }
+    }
+
+    /**
+     * @return number of scheduled timers
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private void insert(Timeout<T> timeout, long deadline) {
+        // First tick at or after the deadline, and never one already run
+        long tick = Math.max(this.currentTick + 1, (deadline + this.tickMs - 1) / this.tickMs);
+        int slot = (int) tick & this.mask;
+        timeout.tick = tick;
+        timeout.prev = null;
+        timeout.next = this.slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        this.slots[slot] = timeout;
+        timeout.scheduled = true;
+        this.size++;
+    }
+}
@@ -0,0 +1,70 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Token bucket: tokens accumulate at a fixed rate up to a burst size, and
+ * each event that is let through takes one.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param ratePerSecond tokens added per second
+     * @param burst         most tokens the bucket holds
+     * @param now           current time (in nanoseconds)
+     */
+    public TokenBucket(double ratePerSecond, int burst, long now) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @param now current time (in nanoseconds)
+     * @return true if a token was taken
+     */
+    public synchronized boolean tryAcquire(long now) {
+        this.refill(now);
+        if (this.tokens < 1) {
+            return false;
+        }
+        this.tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Check for a token without taking it.
+     *
+     * @param now current time (in nanoseconds)
+     * @return true if a token is available
+     */
+    public synchronized boolean hasToken(long now) {
+        this.refill(now);
+        return this.tokens >= 1;
+    }
+
+    /**
+     * @param now current time (in nanoseconds)
+     * @return true if the bucket has refilled to its burst size, so it is no
+     * different from a new one
+     */
+    public synchronized boolean isFull(long now) {
+        this.refill(now);
+        return this.tokens >= this.burst;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - this.lastRefill;
+        if (elapsed > 0) {
+            this.tokens = Math.min(this.burst, this.tokens + elapsed * this.tokensPerNano);
+            this.lastRefill = now;
+        }
+    }
+}
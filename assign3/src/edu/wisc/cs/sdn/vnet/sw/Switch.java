@@ -4,6 +4,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 import net.floodlightcontroller.packet.MACAddress;
 
 import java.util.HashMap;
@@ -89,7 +90,7 @@ public class Switch extends Device implements Runnable {
      * @param inIface     the interface on which the packet was received
      */
     public void handlePacket(Ethernet etherPacket, Iface inIface) {
-        System.out.println("*** -> Received packet: " + etherPacket.toString().replace("\n", "\n\t"));
+        Log.packet(Log.Level.INFO, "*** -> Received packet: ", etherPacket);
         var srcMac = etherPacket.getSourceMAC();
         var destMac = etherPacket.getDestinationMAC();
 
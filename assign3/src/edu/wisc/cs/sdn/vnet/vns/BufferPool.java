@@ -0,0 +1,139 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of receive buffers. Commands are decoded as slices of a chunk, so a
+ * chunk goes back to the pool only once every command sliced from it has
+ * been handled and sent.
+ */
+public class BufferPool
+{
+	/** A pooled receive buffer with a count of the slices still using it */
+	public static class Chunk
+	{
+		private final BufferPool pool;
+		private final ByteBuffer buf;
+		private final AtomicInteger refs;
+
+		private Chunk(BufferPool pool, int size)
+		{
+			this.pool = pool;
+			this.buf = ByteBuffer.allocate(size);
+			this.refs = new AtomicInteger();
+		}
+
+		/**
+		 * @return true if nothing but the current holder uses the chunk
+		 */
+		public boolean isExclusive()
+		{ return 1 == this.refs.get(); }
+
+		/**
+		 * @return the buffer backing this chunk
+		 */
+		public ByteBuffer getBuffer()
+		{ return this.buf; }
+
+		/**
+		 * Add a user of the chunk.
+		 */
+		public void retain()
+		{ this.refs.incrementAndGet(); }
+
+		/**
+		 * Drop a user of the chunk, returning it to the pool if it was the
+		 * last one.
+		 */
+		public void release()
+		{
+			if (0 == this.refs.decrementAndGet())
+			{ this.pool.recycle(this); }
+		}
+	}
+
+	private final int chunkSize;
+	private final int maxFree;
+	private final ConcurrentLinkedQueue<Chunk> free;
+	private final AtomicInteger numFree;
+	private final AtomicLong allocated;
+	private final AtomicLong reused;
+
+	/**
+	 * @param chunkSize size of each buffer
+	 * @param maxFree most buffers kept for reuse; extra ones are dropped
+	 */
+	public BufferPool(int chunkSize, int maxFree)
+	{
+		this.chunkSize = chunkSize;
+		this.maxFree = maxFree;
+		this.free = new ConcurrentLinkedQueue<Chunk>();
+		this.numFree = new AtomicInteger();
+		this.allocated = new AtomicLong();
+		this.reused = new AtomicLong();
+	}
+
+	/**
+	 * @return size of each buffer
+	 */
+	public int getChunkSize()
+	{ return this.chunkSize; }
+
+	/**
+	 * Take a cleared buffer of at least the given size. Buffers larger than
+	 * the pool's chunk size are allocated for the caller and never pooled.
+	 * The caller holds the only reference to it.
+	 */
+	public Chunk acquire(int size)
+	{
+		if (size <= this.chunkSize)
+		{ return this.acquire(); }
+		this.allocated.incrementAndGet();
+		Chunk chunk = new Chunk(this, size);
+		chunk.refs.set(1);
+		return chunk;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if none is free.
+	 * The caller holds the only reference to it.
+	 */
+	public Chunk acquire()
+	{
+		Chunk chunk = this.free.poll();
+		if (null == chunk)
+		{
+			this.allocated.incrementAndGet();
+			chunk = new Chunk(this, this.chunkSize);
+		}
+		else
+		{
+			this.numFree.decrementAndGet();
+			this.reused.incrementAndGet();
+		}
+		chunk.buf.clear();
+		chunk.refs.set(1);
+		return chunk;
+	}
+
+	private void recycle(Chunk chunk)
+	{
+		if (chunk.buf.capacity() != this.chunkSize)
+		{ return; }
+		if (this.numFree.incrementAndGet() > this.maxFree)
+		{
+			this.numFree.decrementAndGet();
+			return;
+		}
+		this.free.offer(chunk);
+	}
+
+	public String toString()
+	{
+		return String.format("chunks allocated=%d reused=%d free=%d",
+				this.allocated.get(), this.reused.get(), this.numFree.get());
+	}
+}
@@ -6,48 +6,140 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	public static final int IFACE_NAME_SIZE = 16;
+
+	/** Size of the command header in front of the frame */
+	public static final int HEADER_SIZE = 4 + 4 + IFACE_NAME_SIZE;
+
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
-	
+
+	/** Buffer holding the raw command; the frame follows the header */
+	protected byte[] mBuf;
+	protected int mFrameOffset;
+	protected int mFrameLength;
+
+	/** Pooled receive buffer backing mBuf; null if not pooled */
+	protected BufferPool.Chunk mChunk;
+
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
-	
+
 	protected CommandPacket deserialize(ByteBuffer buf)
+	{
+		this.deserializeHeader(buf);
+		this.deserializeFrame();
+		return this;
+	}
+
+	/**
+	 * Read the command header and interface name, recording where the frame
+	 * lies in the buffer without decoding it.
+	 */
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
 	{
 		super.deserialize(buf);
-				
-		byte[] tmpBytes = new byte[16];
+
+		byte[] tmpBytes = new byte[IFACE_NAME_SIZE];
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
-		
+
+		this.mBuf = buf.array();
+		this.mFrameOffset = buf.arrayOffset() + buf.position();
+		this.mFrameLength = buf.limit() - buf.position();
+
+		return this;
+	}
+
+	/**
+	 * Decode the frame located by {@link #deserializeHeader(ByteBuffer)}.
+	 */
+	protected CommandPacket deserializeFrame()
+	{
 		this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
-		
+		this.etherPacket.deserialize(this.mBuf, this.mFrameOffset,
+				this.mFrameLength);
 		return this;
 	}
-	
+
+	/**
+	 * Give the receive buffer back once the packet has been handled.
+	 */
+	protected void release()
+	{
+		if (this.mChunk != null)
+		{
+			this.mChunk.release();
+			this.mChunk = null;
+		}
+	}
+
 	protected int getSize()
-	{ return super.getSize() + 16; }
-	
+	{ return super.getSize() + IFACE_NAME_SIZE; }
+
 	protected byte[] serialize()
 	{
 		byte[] packet = this.etherPacket.serialize();
 		int size = this.getSize() + packet.length;
 		this.mLen = size;
-		
+
 		byte[] data = new byte[size];
 		ByteBuffer bb = ByteBuffer.wrap(data);
-		
+
 		byte[] parentData = super.serialize();
-		
+
 		bb.put(parentData);
-		byte[] tmp = new byte[16];
-		System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
+		byte[] tmp = new byte[IFACE_NAME_SIZE];
+		System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0,
 				this.mInterfaceName.length());
 		bb.put(tmp);
 		bb.put(packet);
-		
+
 		return data;
 	}
+
+	/**
+	 * Write the command header for a raw frame directly in front of the frame
+	 * when the buffer has room for it, so the frame is never copied.
+	 * @param buf buffer holding the frame
+	 * @param frameOffset offset of the frame in the buffer
+	 * @param frameLength length of the frame
+	 * @param ifaceName interface out which the frame is sent
+	 * @return offset of the serialized command in the buffer, or -1 if there
+	 *         is no room in front of the frame
+	 */
+	protected static int serializeInPlace(byte[] buf, int frameOffset,
+			int frameLength, String ifaceName)
+	{
+		int start = frameOffset - HEADER_SIZE;
+		if (start < 0)
+		{ return -1; }
+
+		ByteBuffer bb = ByteBuffer.wrap(buf, start, HEADER_SIZE);
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		int nameLen = Math.min(name.length, IFACE_NAME_SIZE);
+		bb.put(name, 0, nameLen);
+		for (int i = nameLen; i < IFACE_NAME_SIZE; i++)
+		{ bb.put((byte)0); }
+
+		return start;
+	}
+
+	/**
+	 * Serialize a raw frame as a complete command, for a frame that is sent
+	 * many times unchanged. The result can be passed to
+	 * {@link VNSComm#sendCommand(byte[], String)} any number of times.
+	 * @param frame the frame, in wire format
+	 * @param ifaceName interface out which the frame is sent
+	 * @return a new buffer holding the command header followed by the frame
+	 */
+	public static byte[] serializeRaw(byte[] frame, String ifaceName)
+	{
+		byte[] buf = new byte[HEADER_SIZE + frame.length];
+		System.arraycopy(frame, 0, buf, HEADER_SIZE, frame.length);
+		serializeInPlace(buf, HEADER_SIZE, frame.length, ifaceName);
+		return buf;
+	}
 }
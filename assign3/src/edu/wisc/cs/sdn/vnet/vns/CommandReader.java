@@ -0,0 +1,130 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Frames commands read from the VNS server. Each read() fills as much of a
+ * pooled buffer as the socket has ready, and every complete command in it
+ * is returned as a slice of that buffer without being copied.
+ */
+public class CommandReader
+{
+	/** Largest command accepted from the server */
+	public static final int MAX_COMMAND_SIZE = 1 << 20;
+
+	/** Size of the pooled receive buffers */
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	/** Receive buffers kept for reuse */
+	public static final int MAX_FREE_CHUNKS = 64;
+
+	/** Move to a fresh buffer rather than read into less space than this */
+	private static final int MIN_READ_SPACE = 16 * 1024;
+
+	private ReadableByteChannel channel;
+	private BufferPool pool;
+
+	/** Buffer being filled; bytes from readPos to its position are unframed */
+	private BufferPool.Chunk chunk;
+	private int readPos;
+
+	/** Buffer owning the last command returned */
+	private BufferPool.Chunk lastChunk;
+
+	private long reads;
+	private long commands;
+
+	public CommandReader(ReadableByteChannel channel)
+	{
+		this.channel = channel;
+		this.pool = new BufferPool(CHUNK_SIZE, MAX_FREE_CHUNKS);
+		this.chunk = this.pool.acquire();
+		this.readPos = 0;
+	}
+
+	/**
+	 * Read the next complete command.
+	 * @return the command as a slice of a pooled buffer, positioned at its
+	 *         start; null if the server closed the connection. The caller
+	 *         must release {@link #getLastChunk()} once done with it.
+	 * @throws IOException if reading fails or the command length is invalid
+	 */
+	public ByteBuffer next() throws IOException
+	{
+		while (true)
+		{
+			ByteBuffer buf = this.chunk.getBuffer();
+			int avail = buf.position() - this.readPos;
+			int needed = 4;
+			if (avail >= 4)
+			{
+				int len = buf.getInt(this.readPos);
+				if (len > MAX_COMMAND_SIZE || len < 8)
+				{
+					throw new IOException(String.format(
+							"comamnd length too large %d", len));
+				}
+				if (avail >= len)
+				{
+					ByteBuffer cmd = ByteBuffer.wrap(buf.array(), this.readPos,
+							len).slice();
+					this.readPos += len;
+					this.chunk.retain();
+					this.lastChunk = this.chunk;
+					this.commands++;
+					return cmd;
+				}
+				needed = len;
+			}
+
+			if (this.readPos + needed > buf.capacity()
+					|| buf.remaining() < MIN_READ_SPACE)
+			{ this.relocate(avail, needed); }
+
+			int ret = this.channel.read(this.chunk.getBuffer());
+			this.reads++;
+			if (ret < 0)
+			{ return null; }
+		}
+	}
+
+	/**
+	 * Move the unframed bytes to the start of a buffer with room for at
+	 * least the needed command, reusing the current buffer if no command
+	 * slices still point into it.
+	 */
+	private void relocate(int avail, int needed)
+	{
+		ByteBuffer buf = this.chunk.getBuffer();
+		if (this.chunk.isExclusive() && buf.capacity() >= needed)
+		{
+			System.arraycopy(buf.array(), this.readPos, buf.array(), 0, avail);
+		}
+		else
+		{
+			BufferPool.Chunk next = this.pool.acquire(needed);
+			System.arraycopy(buf.array(), this.readPos,
+					next.getBuffer().array(), 0, avail);
+			this.chunk.release();
+			this.chunk = next;
+			buf = next.getBuffer();
+		}
+		buf.clear();
+		buf.position(avail);
+		this.readPos = 0;
+	}
+
+	/**
+	 * @return the buffer owning the last command returned by next()
+	 */
+	public BufferPool.Chunk getLastChunk()
+	{ return this.lastChunk; }
+
+	public String toString()
+	{
+		return String.format("reads=%d commands=%d %s", this.reads,
+				this.commands, this.pool.toString());
+	}
+}
@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, lock-free queue of commands waiting to go out one interface.
+ * Any number of threads may enqueue; only the writer thread dequeues. When
+ * the queue is full new commands are dropped rather than blocking the
+ * sender.
+ */
+public class EgressQueue
+{
+	/** Commands each interface may have queued before tail drops start */
+	public static final int CAPACITY = 1024;
+
+	private final String ifaceName;
+	private final AtomicReferenceArray<PacketWriter.Pending> slots;
+	private final int mask;
+
+	/** Next slot a producer will claim */
+	private final AtomicLong tail;
+
+	/** Next slot the writer will take; only written by the writer */
+	private volatile long head;
+
+	/* Metrics */
+	private final LongAdder drops;
+	private volatile long sent;
+	private volatile long totalLatencyNanos;
+	private volatile long maxLatencyNanos;
+	private volatile long maxDepth;
+
+	public EgressQueue(String ifaceName)
+	{
+		this.ifaceName = ifaceName;
+		this.slots = new AtomicReferenceArray<PacketWriter.Pending>(CAPACITY);
+		this.mask = CAPACITY - 1;
+		this.tail = new AtomicLong();
+		this.head = 0;
+		this.drops = new LongAdder();
+	}
+
+	/**
+	 * @return name of the interface this queue feeds
+	 */
+	public String getIfaceName()
+	{ return this.ifaceName; }
+
+	/**
+	 * Add a command to the tail of the queue.
+	 * @return false if the queue was full and the command was dropped
+	 */
+	boolean offer(PacketWriter.Pending pending)
+	{
+		while (true)
+		{
+			long t = this.tail.get();
+			if (t - this.head >= CAPACITY)
+			{
+				this.drops.increment();
+				return false;
+			}
+			if (this.tail.compareAndSet(t, t + 1))
+			{
+				this.slots.set((int)(t & this.mask), pending);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Take the command at the head of the queue. Only called by the writer.
+	 * @return the command; null if the queue is empty
+	 */
+	PacketWriter.Pending poll()
+	{
+		int index = (int)(this.head & this.mask);
+		PacketWriter.Pending pending = this.slots.get(index);
+		if (null == pending)
+		{ return null; }
+		long depth = this.tail.get() - this.head;
+		if (depth > this.maxDepth)
+		{ this.maxDepth = depth; }
+		this.slots.lazySet(index, null);
+		this.head = this.head + 1;
+		return pending;
+	}
+
+	/**
+	 * @return true if no command has been claimed but not yet taken
+	 */
+	boolean isEmpty()
+	{ return this.tail.get() == this.head; }
+
+	/**
+	 * Record that a command taken from this queue has been written.
+	 * Only called by the writer.
+	 * @param latency time (in nanoseconds) from enqueue to write
+	 */
+	void recordSent(long latency)
+	{
+		this.sent++;
+		this.totalLatencyNanos += latency;
+		if (latency > this.maxLatencyNanos)
+		{ this.maxLatencyNanos = latency; }
+	}
+
+	/**
+	 * @return number of commands currently queued
+	 */
+	public long getDepth()
+	{ return Math.max(0, this.tail.get() - this.head); }
+
+	/**
+	 * @return most commands seen queued at once
+	 */
+	public long getMaxDepth()
+	{ return this.maxDepth; }
+
+	/**
+	 * @return number of commands dropped because the queue was full
+	 */
+	public long getDrops()
+	{ return this.drops.sum(); }
+
+	/**
+	 * @return number of commands written
+	 */
+	public long getSent()
+	{ return this.sent; }
+
+	/**
+	 * @return average time (in nanoseconds) from enqueue to write
+	 */
+	public long getAverageLatencyNanos()
+	{
+		long sent = this.sent;
+		return (0 == sent) ? 0 : this.totalLatencyNanos / sent;
+	}
+
+	/**
+	 * @return longest time (in nanoseconds) from enqueue to write
+	 */
+	public long getMaxLatencyNanos()
+	{ return this.maxLatencyNanos; }
+
+	public String toString()
+	{
+		return String.format("%s depth=%d maxDepth=%d sent=%d drops=%d "
+				+ "avgLatencyUs=%.1f maxLatencyUs=%.1f", this.ifaceName,
+				this.getDepth(), this.maxDepth, this.sent, this.getDrops(),
+				this.getAverageLatencyNanos() / 1000.0,
+				this.maxLatencyNanos / 1000.0);
+	}
+}
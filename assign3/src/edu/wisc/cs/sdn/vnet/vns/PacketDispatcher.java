@@ -0,0 +1,112 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.wisc.cs.sdn.vnet.FlowHash;
+
+/**
+ * Hands packets read by the VNS reader thread to a fixed set of forwarding
+ * workers. Packets are sharded by a hash of their 5-tuple, so all packets
+ * of a flow are handled by the same worker, in the order they arrived.
+ */
+public class PacketDispatcher
+{
+	/** Packets each worker may have queued before the reader blocks */
+	public static final int QUEUE_SIZE = 1024;
+
+	/** Marks the end of a worker's queue on shutdown */
+	private static final CommandPacket POISON = new CommandPacket();
+
+	private VNSComm vnsComm;
+	private BlockingQueue<CommandPacket>[] queues;
+	private Thread[] workers;
+
+	@SuppressWarnings("unchecked")
+	public PacketDispatcher(VNSComm vnsComm, int numWorkers)
+	{
+		this.vnsComm = vnsComm;
+		this.queues = (BlockingQueue<CommandPacket>[]) new BlockingQueue<?>[numWorkers];
+		this.workers = new Thread[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+		{
+			final BlockingQueue<CommandPacket> queue =
+					new ArrayBlockingQueue<CommandPacket>(QUEUE_SIZE);
+			this.queues[i] = queue;
+			this.workers[i] = new Thread(new Runnable()
+			{
+				public void run()
+				{ work(queue); }
+			}, "forward-" + i);
+			this.workers[i].setDaemon(true);
+		}
+	}
+
+	public void start()
+	{
+		for (Thread worker : this.workers)
+		{ worker.start(); }
+	}
+
+	/**
+	 * Queue a packet for the worker that owns its flow. Blocks while that
+	 * worker's queue is full.
+	 * @param cmdPkt packet whose header has been deserialized
+	 */
+	public void dispatch(CommandPacket cmdPkt)
+	{
+		int hash = FlowHash.hash(cmdPkt.mBuf, cmdPkt.mFrameOffset,
+				cmdPkt.mFrameLength);
+		int shard = (hash & 0x7fffffff) % this.queues.length;
+		try
+		{ this.queues[shard].put(cmdPkt); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Let the workers finish the packets already queued, then stop them.
+	 */
+	public void shutdown()
+	{
+		for (BlockingQueue<CommandPacket> queue : this.queues)
+		{
+			try
+			{ queue.put(POISON); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		for (Thread worker : this.workers)
+		{
+			try
+			{ worker.join(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void work(BlockingQueue<CommandPacket> queue)
+	{
+		while (true)
+		{
+			CommandPacket cmdPkt;
+			try
+			{ cmdPkt = queue.take(); }
+			catch (InterruptedException e)
+			{ return; }
+			if (cmdPkt == POISON)
+			{ return; }
+
+			try
+			{ this.vnsComm.handleCommandPacket(cmdPkt); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Egress scheduler: a dedicated thread that drains per-interface egress
+ * queues to the VNS socket, so forwarding workers and timer threads never
+ * write to the stream directly and a congested interface only drops its
+ * own packets. Queues are served round-robin and commands are coalesced
+ * into a reusable buffer that is written once the batch is full, every
+ * queue is empty, or the batch has been collecting for longer than the
+ * flush deadline.
+ */
+public class PacketWriter implements Runnable
+{
+	/** Size of the reusable batch buffer */
+	public static final int BATCH_SIZE = 64 * 1024;
+
+	/** Longest a batch may keep collecting while more commands keep arriving */
+	public static final long FLUSH_DEADLINE_NANOS = 50 * 1000;
+
+	/** Number of batch-size histogram buckets; bucket i counts batches of
+	 *  2^i to 2^(i+1)-1 commands, the last bucket counts anything larger */
+	public static final int HISTOGRAM_BUCKETS = 8;
+
+	/** Longest the writer sleeps before checking the queues again */
+	private static final long IDLE_PARK_NANOS = 1000 * 1000;
+
+	/** A serialized command waiting to be sent */
+	static class Pending
+	{
+		final byte[] buf;
+		final int offset;
+		final int length;
+		final BufferPool.Chunk chunk;
+		final long enqueued;
+
+		Pending(byte[] buf, int offset, int length, BufferPool.Chunk chunk)
+		{
+			this.buf = buf;
+			this.offset = offset;
+			this.length = length;
+			this.chunk = chunk;
+			this.enqueued = System.nanoTime();
+		}
+
+		void release()
+		{
+			if (this.chunk != null)
+			{ this.chunk.release(); }
+		}
+	}
+
+	private OutputStream outStream;
+	private Thread thread;
+	private byte[] batch;
+	private volatile boolean running;
+	private volatile boolean idle;
+
+	/** Egress queues; maps interface names to queues */
+	private final ConcurrentHashMap<String,EgressQueue> queues;
+	private final CopyOnWriteArrayList<EgressQueue> queueList;
+
+	/** Queues and enqueue times of the commands in the current batch */
+	private EgressQueue[] batchQueues;
+	private long[] batchEnqueued;
+
+	/* Metrics; only written by the writer thread */
+	private volatile long flushes;
+	private volatile long commands;
+	private volatile long bytes;
+	private volatile long maxBatch;
+	private volatile long totalFlushNanos;
+	private volatile long maxFlushNanos;
+	private final long[] batchHistogram = new long[HISTOGRAM_BUCKETS];
+
+	public PacketWriter(OutputStream outStream)
+	{
+		this.outStream = outStream;
+		this.queues = new ConcurrentHashMap<String,EgressQueue>();
+		this.queueList = new CopyOnWriteArrayList<EgressQueue>();
+		this.batch = new byte[BATCH_SIZE];
+		this.batchQueues = new EgressQueue[64];
+		this.batchEnqueued = new long[64];
+		this.running = true;
+		this.thread = new Thread(this, "vns-writer");
+		this.thread.setDaemon(true);
+	}
+
+	public void start()
+	{ this.thread.start(); }
+
+	/**
+	 * @param ifaceName name of an interface
+	 * @return the egress queue for the interface, created if needed
+	 */
+	public EgressQueue getQueue(String ifaceName)
+	{
+		EgressQueue queue = this.queues.get(ifaceName);
+		if (null == queue)
+		{
+			EgressQueue created = new EgressQueue(ifaceName);
+			queue = this.queues.putIfAbsent(ifaceName, created);
+			if (null == queue)
+			{
+				this.queueList.add(created);
+				queue = created;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * @return the egress queues of all interfaces that have sent packets
+	 */
+	public Collection<EgressQueue> getQueues()
+	{ return this.queueList; }
+
+	/**
+	 * Queue a serialized command for sending out an interface. The buffer
+	 * must not be modified afterwards. Never blocks.
+	 * @param ifaceName interface the command is sent out of
+	 * @param buf buffer holding the command
+	 * @param offset offset of the command in the buffer
+	 * @param length length of the command
+	 * @param chunk pooled buffer holding the command, released once the
+	 *        command has been copied out, sent or dropped; null if not pooled
+	 * @return false if the interface's queue was full and the command was
+	 *         dropped
+	 */
+	public boolean enqueue(String ifaceName, byte[] buf, int offset,
+			int length, BufferPool.Chunk chunk)
+	{
+		Pending pending = new Pending(buf, offset, length, chunk);
+		if (!this.getQueue(ifaceName).offer(pending))
+		{
+			pending.release();
+			return false;
+		}
+		if (this.idle)
+		{ LockSupport.unpark(this.thread); }
+		return true;
+	}
+
+	/**
+	 * Send everything already queued, then stop the writer thread.
+	 */
+	public void shutdown()
+	{
+		this.running = false;
+		LockSupport.unpark(this.thread);
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	public void run()
+	{
+		Pending carry = null;
+		EgressQueue carryQueue = null;
+		int next = 0;
+		while (true)
+		{
+			int used = 0;
+			int count = 0;
+			long oldest = Long.MAX_VALUE;
+			long batchStart = System.nanoTime();
+
+			// Start with the command that did not fit in the last batch
+			if (carry != null)
+			{
+				this.addToBatch(count++, carryQueue, carry.enqueued);
+				oldest = carry.enqueued;
+				if (carry.length > this.batch.length)
+				{
+					// Commands too large for the batch buffer go out on their own
+					this.write(carry.buf, carry.offset, carry.length, count,
+							oldest);
+					carry.release();
+					carry = null;
+					continue;
+				}
+				System.arraycopy(carry.buf, carry.offset, this.batch, 0,
+						carry.length);
+				used = carry.length;
+				carry.release();
+				carry = null;
+			}
+
+			// Take one command from each queue in turn
+			boolean progress = true;
+			while (progress && null == carry
+					&& System.nanoTime() - batchStart < FLUSH_DEADLINE_NANOS)
+			{
+				progress = false;
+				int size = this.queueList.size();
+				for (int i = 0; i < size; i++)
+				{
+					EgressQueue queue = this.queueList.get(next);
+					next = (next + 1) % size;
+					Pending pending = queue.poll();
+					if (null == pending)
+					{ continue; }
+					progress = true;
+					if (used + pending.length > this.batch.length)
+					{
+						carry = pending;
+						carryQueue = queue;
+						break;
+					}
+					System.arraycopy(pending.buf, pending.offset, this.batch,
+							used, pending.length);
+					used += pending.length;
+					pending.release();
+					this.addToBatch(count++, queue, pending.enqueued);
+					if (pending.enqueued < oldest)
+					{ oldest = pending.enqueued; }
+				}
+			}
+
+			if (count > 0)
+			{
+				this.write(this.batch, 0, used, count, oldest);
+				continue;
+			}
+			if (carry != null)
+			{ continue; }
+
+			// Nothing queued; sleep until a sender wakes us up
+			if (!this.running && this.allEmpty())
+			{ return; }
+			this.idle = true;
+			if (this.running && this.allEmpty())
+			{ LockSupport.parkNanos(this, IDLE_PARK_NANOS); }
+			this.idle = false;
+		}
+	}
+
+	private boolean allEmpty()
+	{
+		for (EgressQueue queue : this.queueList)
+		{
+			if (!queue.isEmpty())
+			{ return false; }
+		}
+		return true;
+	}
+
+	private void addToBatch(int index, EgressQueue queue, long enqueued)
+	{
+		if (index >= this.batchQueues.length)
+		{
+			this.batchQueues = Arrays.copyOf(this.batchQueues, index * 2);
+			this.batchEnqueued = Arrays.copyOf(this.batchEnqueued, index * 2);
+		}
+		this.batchQueues[index] = queue;
+		this.batchEnqueued[index] = enqueued;
+	}
+
+	private void write(byte[] buf, int offset, int length, int count,
+			long oldest)
+	{
+		try
+		{
+			this.outStream.write(buf, offset, length);
+			this.outStream.flush();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing packet");
+			return;
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{
+			this.batchQueues[i].recordSent(now - this.batchEnqueued[i]);
+			this.batchQueues[i] = null;
+		}
+
+		long latency = now - oldest;
+		this.flushes++;
+		this.commands += count;
+		this.bytes += length;
+		this.totalFlushNanos += latency;
+		if (count > this.maxBatch)
+		{ this.maxBatch = count; }
+		if (latency > this.maxFlushNanos)
+		{ this.maxFlushNanos = latency; }
+		int bucket = 31 - Integer.numberOfLeadingZeros(count);
+		this.batchHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+	}
+
+	/**
+	 * @return number of writes to the socket
+	 */
+	public long getFlushes()
+	{ return this.flushes; }
+
+	/**
+	 * @return number of commands sent
+	 */
+	public long getCommands()
+	{ return this.commands; }
+
+	/**
+	 * @return number of bytes sent
+	 */
+	public long getBytes()
+	{ return this.bytes; }
+
+	/**
+	 * @return largest number of commands sent in one write
+	 */
+	public long getMaxBatch()
+	{ return this.maxBatch; }
+
+	/**
+	 * @return average time (in nanoseconds) from enqueueing the oldest command
+	 *         in a batch to the batch being written
+	 */
+	public long getAverageFlushNanos()
+	{
+		long flushes = this.flushes;
+		return (0 == flushes) ? 0 : this.totalFlushNanos / flushes;
+	}
+
+	/**
+	 * @return longest time (in nanoseconds) from enqueueing the oldest command
+	 *         in a batch to the batch being written
+	 */
+	public long getMaxFlushNanos()
+	{ return this.maxFlushNanos; }
+
+	/**
+	 * @return copy of the batch-size histogram; bucket i counts batches of
+	 *         2^i to 2^(i+1)-1 commands
+	 */
+	public long[] getBatchHistogram()
+	{ return this.batchHistogram.clone(); }
+
+	public String toString()
+	{
+		long flushes = this.flushes;
+		String result = String.format(
+				"writes=%d commands=%d bytes=%d avgBatch=%.2f maxBatch=%d "
+				+ "avgFlushUs=%.1f maxFlushUs=%.1f batches={",
+				flushes, this.commands, this.bytes,
+				(0 == flushes) ? 0.0 : (double)this.commands / flushes,
+				this.maxBatch, this.getAverageFlushNanos() / 1000.0,
+				this.maxFlushNanos / 1000.0);
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+		{
+			result += String.format("%s%d%s:%d", (i > 0) ? " " : "", 1 << i,
+					(i == HISTOGRAM_BUCKETS - 1) ? "+" : "",
+					this.batchHistogram[i]);
+		}
+		result += "}";
+		for (EgressQueue queue : this.queueList)
+		{ result += "\n\t" + queue.toString(); }
+		return result;
+	}
+}
@@ -1,12 +1,13 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
@@ -16,9 +17,23 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	private SocketChannel channel;
 	private Socket socket;
 	private Device device;
 	
+	/** Frames commands received from the server */
+	private CommandReader reader;
+	
+	/** Packet being handled by the current thread */
+	private final ThreadLocal<CommandPacket> currentPacket = 
+			new ThreadLocal<CommandPacket>();
+	
+	/** Forwarding workers; null if packets are handled on the reader thread */
+	private PacketDispatcher dispatcher;
+	
+	/** Writer thread; null if packets are written by the sending thread */
+	private volatile PacketWriter writer;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
@@ -39,7 +54,11 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{ 
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			socket = channel.socket();
+			reader = new CommandReader(channel);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -66,6 +85,69 @@ public class VNSComm
 		return true; 
 	}
 	
+	/**
+	 * Send packets from a dedicated writer thread that drains a bounded 
+	 * egress queue per interface and coalesces them into batched writes, 
+	 * instead of writing each one from the sending thread.
+	 * @return true if the writer was started, otherwise false
+	 */
+	public boolean startWriter()
+	{
+		if (this.writer != null)
+		{ return true; }
+		PacketWriter writer;
+		try
+		{ writer = new PacketWriter(this.socket.getOutputStream()); }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		for (Iface iface : this.device.getInterfaces().values())
+		{ writer.getQueue(iface.getName()); }
+		writer.start();
+		this.writer = writer;
+		return true;
+	}
+	
+	/**
+	 * @return the batching writer; null if it has not been started
+	 */
+	public PacketWriter getWriter()
+	{ return this.writer; }
+	
+	/**
+	 * Hand received packets to forwarding workers sharded by flow, and send
+	 * packets from a dedicated writer thread, instead of doing everything on
+	 * the thread that reads from the server.
+	 * @param numWorkers number of forwarding workers
+	 * @return true if the pipeline was started, otherwise false
+	 */
+	public boolean startPipeline(int numWorkers)
+	{
+		if (!this.startWriter())
+		{ return false; }
+		this.dispatcher = new PacketDispatcher(this, numWorkers);
+		this.dispatcher.start();
+		return true;
+	}
+	
+	/**
+	 * Finish handling and sending queued packets, then stop the pipeline.
+	 */
+	public void shutdown()
+	{
+		if (this.dispatcher != null)
+		{ this.dispatcher.shutdown(); }
+		if (this.writer != null)
+		{ 
+			this.writer.shutdown();
+			System.out.println("Send path: " + this.writer.toString());
+		}
+		if (this.reader != null)
+		{ System.out.println("Receive path: " + this.reader.toString()); }
+	}
+	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
@@ -91,6 +173,8 @@ public class VNSComm
 			}
 		}
 		
+		this.device.interfacesUpdated();
+		
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -108,73 +192,25 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		// Read the next command into a pooled receive buffer
+		ByteBuffer buf;
+		try
+		{ buf = this.reader.next(); }
+		catch (IOException e)
 		{
-			e.printStackTrace();
+			System.err.println("Error: " + e.getMessage());
+			try { socket.close(); } catch (IOException e2) { }
 			return false;
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
-		
-		if (len > 10000 || len < 0)
+		if (null == buf)
 		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
+			System.err.println("Error: connection closed by server");
 			return false;
 		}
-		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		BufferPool.Chunk chunk = this.reader.getLastChunk();
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -182,26 +218,33 @@ public class VNSComm
 				System.err.println(String.format(
 						"Error: expected command %d but got %d", expectedCmd,
 						command));
+				chunk.release();
 				return false;
 			}
 		}
 		
-		buf.position(0);
-		switch(command)
+		if (command == Command.VNS_PACKET)
 		{
-		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-			if (this.device.getLogFile() != null)
-			{ this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
-			
+			cmdPkt.deserializeHeader(buf);
+			cmdPkt.mChunk = chunk;
+			if (this.dispatcher != null)
+			{ this.dispatcher.dispatch(cmdPkt); }
+			else
+			{ this.handleCommandPacket(cmdPkt); }
+			return true;
+		}
+		
+		try
+		{ return this.handleCommand(command, buf); }
+		finally
+		{ chunk.release(); }
+	}
+	
+	private boolean handleCommand(int command, ByteBuffer buf)
+	{
+		switch(command)
+		{
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
@@ -223,6 +266,40 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Log a received packet and pass it to the device.
+	 * @param cmdPkt packet whose header has been deserialized
+	 */
+	protected void handleCommandPacket(CommandPacket cmdPkt)
+	{
+		this.currentPacket.set(cmdPkt);
+		try
+		{
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
+			
+			// Log packet
+			if (this.device.getLogFile() != null)
+			{ 
+				this.device.getLogFile().dump(cmdPkt.mBuf, cmdPkt.mFrameOffset,
+						cmdPkt.mFrameLength);
+			}
+			
+			// Give the device a chance to forward the raw frame first
+			if (this.device.handleRawPacket(cmdPkt.mBuf, cmdPkt.mFrameOffset,
+					cmdPkt.mFrameLength, inIface))
+			{ return; }
+			
+			// Pass to device, student's code should take over here
+			cmdPkt.deserializeFrame();
+			this.device.handlePacket(cmdPkt.etherPacket, inIface);
+		}
+		finally
+		{
+			this.currentPacket.remove();
+			cmdPkt.release();
+		}
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -260,11 +337,97 @@ public class VNSComm
 		if (this.device.getLogFile() != null)
 		{ this.device.getLogFile().dump(etherPacket); }
 		
+		return this.writeCommand(ifaceName, buf, 0, buf.length, null);
+	}
+	
+	/**
+	 * Send a frame that is still in its raw wire format. If the buffer has
+	 * room in front of the frame (as it does for a frame received from the
+	 * server) the command header is written there and the buffer is sent
+	 * as-is.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName interface out which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(byte[] frame, int offset, int length,
+			String ifaceName)
+	{
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		
+		int start = CommandPacket.serializeInPlace(frame, offset, length,
+				ifaceName);
+		if (start < 0)
+		{
+			byte[] buf = new byte[CommandPacket.HEADER_SIZE + length];
+			System.arraycopy(frame, offset, buf, buf.length - length, length);
+			frame = buf;
+			offset = buf.length - length;
+			start = CommandPacket.serializeInPlace(frame, offset, length,
+					ifaceName);
+		}
+		
+		// Keep the receive buffer out of the pool until the writer sends it
+		CommandPacket current = this.currentPacket.get();
+		BufferPool.Chunk chunk = (current != null && current.mBuf == frame) 
+				? current.mChunk : null;
+		
+		return this.writeCommand(ifaceName, frame, start, 
+				offset - start + length, chunk);
+	}
+	
+	/**
+	 * Send a frame already serialized as a command by
+	 * {@link CommandPacket#serializeRaw(byte[], String)}. The buffer is never
+	 * written to, so the same command may be sent again while an earlier
+	 * send is still queued.
+	 * @param command buffer holding the command header and the frame
+	 * @param ifaceName interface out which to send the frame; must be the
+	 *        one the command was serialized for
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendCommand(byte[] command, String ifaceName)
+	{
+		// Log packet
+		if (this.device.getLogFile() != null)
+		{
+			this.device.getLogFile().dump(command, CommandPacket.HEADER_SIZE,
+					command.length - CommandPacket.HEADER_SIZE);
+		}
+		
+		return this.writeCommand(ifaceName, command, 0, command.length, null);
+	}
+	
+	/**
+	 * Write a serialized command to the server, or queue it on the egress
+	 * queue of its interface if the writer thread is running.
+	 * @param chunk receive buffer holding the command, if any; it is kept
+	 *        out of the pool until the command has been sent
+	 * @return false if the command could not be written or was dropped 
+	 *         because the interface's egress queue was full
+	 */
+	private boolean writeCommand(String ifaceName, byte[] buf, int offset, 
+			int length, BufferPool.Chunk chunk)
+	{
+		PacketWriter writer = this.writer;
+		if (writer != null)
+		{
+			if (chunk != null)
+			{ chunk.retain(); }
+			return writer.enqueue(ifaceName, buf, offset, length, chunk);
+		}
+		
 		try
 		{
 			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-			outStream.flush();
+			synchronized (outStream)
+			{
+				outStream.write(buf, offset, length);
+				outStream.flush();
+			}
 		}
 		catch(IOException e)
 		{
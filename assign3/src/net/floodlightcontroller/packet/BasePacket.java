@@ -17,15 +17,42 @@
 
 package net.floodlightcontroller.packet;
 
+import java.util.Arrays;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /**
+     * When set, deserialize only decodes the current layer and keeps the
+     * payload as a slice of the original buffer until getPayload is called
+     */
+    private static volatile boolean lazyDecode = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Undecoded payload slice; only set in lazy decode mode */
+    protected byte[] rawPayload;
+    protected int rawPayloadOffset;
+    protected int rawPayloadLength;
+
+    /**
+     * @return true if payloads are decoded on first access
+     */
+    public static boolean isLazyDecode() {
+        return lazyDecode;
+    }
+
+    /**
+     * @param lazy whether payloads should be decoded on first access rather
+     *             than during deserialize
+     */
+    public static void setLazyDecode(boolean lazy) {
+        lazyDecode = lazy;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +75,11 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (rawPayload != null) {
+            byte[] data = rawPayload;
+            rawPayload = null;
+            decodePayload(data, rawPayloadOffset, rawPayloadLength);
+        }
         return payload;
     }
 
@@ -57,8 +89,57 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.rawPayload = null;
         return this;
     }
+
+    /**
+     * Creates an empty packet of the type carried by this layer's payload.
+     * Called once the header fields of this layer have been decoded.
+     * @return the payload packet to deserialize into
+     */
+    protected IPacket newPayload() {
+        return new Data();
+    }
+
+    /**
+     * Decodes the payload of this layer now, or keeps the slice for later
+     * when lazy decoding is enabled.
+     */
+    protected void deserializePayload(byte[] data, int offset, int length) {
+        if (lazyDecode) {
+            this.payload = null;
+            this.rawPayload = data;
+            this.rawPayloadOffset = offset;
+            this.rawPayloadLength = length;
+        } else {
+            this.rawPayload = null;
+            decodePayload(data, offset, length);
+        }
+    }
+
+    private void decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = newPayload();
+        this.payload = payload.deserialize(data, offset, length);
+        this.payload.setParent(this);
+    }
+
+    /**
+     * @return the serialized payload; an undecoded payload is copied from
+     *         the original buffer without being decoded; null if there is
+     *         no payload
+     */
+    protected byte[] serializePayload() {
+        if (rawPayload != null) {
+            return Arrays.copyOfRange(rawPayload, rawPayloadOffset,
+                    rawPayloadOffset + rawPayloadLength);
+        }
+        if (payload == null) {
+            return null;
+        }
+        payload.setParent(this);
+        return payload.serialize();
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +154,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +171,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -287,11 +287,7 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
@@ -360,6 +356,18 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
+        this.deserializePayload(data, bb.position(), bb.limit()-bb.position());
+
+        if (this.totalLength != length)
+            this.isTruncated = true;
+        else
+            this.isTruncated = false;
+
+        return this;
+    }
+
+    @Override
+    protected IPacket newPayload() {
         IPacket payload;
         if (IPv4.protocolClassMap.containsKey(this.protocol)) {
             Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
@@ -371,15 +379,7 @@ public class IPv4 extends BasePacket {
         } else {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-
-        if (this.totalLength != length)
-            this.isTruncated = true;
-        else
-            this.isTruncated = false;
-
-        return this;
+        return payload;
     }
 
     /**
@@ -492,6 +492,46 @@ public class IPv4 extends BasePacket {
                 (byte)ipAddress};
     }
 
+    /**
+     * Computes the Internet checksum over a region of a byte array. When the
+     * region is a header that already contains its checksum field, the result
+     * is 0 if the header is intact.
+     * @param data the buffer holding the header
+     * @param offset offset of the first byte to sum
+     * @param length number of bytes to sum
+     * @return the one's complement of the one's complement sum
+     */
+    public static short computeChecksum(byte[] data, int offset, int length) {
+        int accumulation = 0;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        // pad to an even number of shorts
+        if ((length & 1) != 0) {
+            accumulation += (data[end] & 0xff) << 8;
+        }
+        accumulation = ((accumulation >>> 16) & 0xffff) + (accumulation & 0xffff);
+        accumulation += (accumulation >>> 16);
+        return (short) (~accumulation & 0xffff);
+    }
+
+    /**
+     * Incrementally updates a checksum after one 16-bit word of the covered
+     * data changes, using HC' = ~(~HC + ~m + m') from RFC 1624.
+     * @param checksum the checksum before the change
+     * @param oldWord the 16-bit word before the change
+     * @param newWord the 16-bit word after the change
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldWord, short newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        accumulation = ((accumulation >>> 16) & 0xffff) + (accumulation & 0xffff);
+        accumulation += (accumulation >>> 16);
+        return (short) (~accumulation & 0xffff);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
@@ -17,6 +17,11 @@ public class RIPv2 extends BasePacket
 	protected byte version;
 	protected List<RIPv2Entry> entries;
 
+	/** Undecoded entries; only set in lazy decode mode */
+	protected byte[] rawEntries;
+	protected int rawEntriesOffset;
+	protected int rawEntriesLength;
+
 	public RIPv2()
 	{ 
         super(); 
@@ -25,13 +30,25 @@ public class RIPv2 extends BasePacket
     }
 
 	public void setEntries(List<RIPv2Entry> entries)
-	{ this.entries = entries; }
+	{ 
+        this.entries = entries;
+        this.rawEntries = null;
+    }
 
 	public List<RIPv2Entry> getEntries()
-	{ return this.entries; }
+	{
+        if (this.rawEntries != null)
+        {
+            byte[] data = this.rawEntries;
+            this.rawEntries = null;
+            this.decodeEntries(data, this.rawEntriesOffset, 
+                    this.rawEntriesLength);
+        }
+        return this.entries;
+    }
 
     public void addEntry(RIPv2Entry entry)
-    { this.entries.add(entry); }
+    { this.getEntries().add(entry); }
 	
 	public void setCommand(byte command)
 	{ this.command = command; }
@@ -42,14 +59,15 @@ public class RIPv2 extends BasePacket
 	@Override
 	public byte[] serialize() 
     {
-		int length = 1 + 1 + 2 + this.entries.size() * (5*4);
+		List<RIPv2Entry> entries = this.getEntries();
+		int length = 1 + 1 + 2 + entries.size() * (5*4);
 		byte[] data = new byte[length];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 
 		bb.put(this.command);
 		bb.put(this.version);
 		bb.putShort((short)0); // Put padding
-		for (RIPv2Entry entry : this.entries)
+		for (RIPv2Entry entry : entries)
 		{ bb.put(entry.serialize()); }
 
 		return data;
@@ -63,6 +81,24 @@ public class RIPv2 extends BasePacket
 		this.command = bb.get();
 		this.version = bb.get();
         bb.getShort(); // Consume padding
+        if (BasePacket.isLazyDecode())
+        {
+            this.entries = null;
+            this.rawEntries = data;
+            this.rawEntriesOffset = bb.position();
+            this.rawEntriesLength = bb.limit()-bb.position();
+        }
+        else
+        {
+            this.rawEntries = null;
+            this.decodeEntries(data, bb.position(), bb.limit()-bb.position());
+        }
+		return this;
+	}
+
+	private void decodeEntries(byte[] data, int offset, int length)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
 		this.entries = new LinkedList<RIPv2Entry>();
         while (bb.position() < bb.limit())
         {
@@ -71,7 +107,6 @@ public class RIPv2 extends BasePacket
             bb.position(bb.position() +  5*4);
             this.entries.add(entry);
         }
-		return this;
 	}
 
     public boolean equals(Object obj)
@@ -83,15 +118,17 @@ public class RIPv2 extends BasePacket
         if (!(obj instanceof RIPv2))
         { return false; }
         RIPv2 other = (RIPv2)obj;
+        List<RIPv2Entry> entries = this.getEntries();
+        List<RIPv2Entry> otherEntries = other.getEntries();
         if (this.command != other.command)
         { return false; }
         if (this.version != other.version)
         { return false; }
-        if (this.entries.size() != other.entries.size())
+        if (entries.size() != otherEntries.size())
         { return false; }
-        for (int i = 0; i < this.entries.size(); i++)
+        for (int i = 0; i < entries.size(); i++)
         {
-            if (!this.entries.get(i).equals(other.entries.get(i)))
+            if (!entries.get(i).equals(otherEntries.get(i)))
             { return false; }
         }
         return true; 
@@ -101,7 +138,7 @@ public class RIPv2 extends BasePacket
 	{
 		String x = String.format("RIP : {command=%d, version=%d, entries={",
                 this.command, this.version);
-		for (RIPv2Entry entry : this.entries)
+		for (RIPv2Entry entry : this.getEntries())
 		{ x = x + entry.toString() + ","; }
         x = x + "}}";
 		return x;
@@ -0,0 +1,180 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Random;
+
+import net.floodlightcontroller.packet.BasePacket;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Randomized check that FlowHash gives a frame the same hash whether it is
+ * hashed raw, as the fast path and the dispatcher do, or decoded, as the
+ * decoded forwarding path does, with both eager and lazy decoding. Packets
+ * are TCP, UDP, ICMP and other protocols, with and without IP options,
+ * fragmented or not, with ports of any value, padded or not, at any offset
+ * in the buffer. Each hash must also equal the hash of the 5-tuple the
+ * packet was built with, so payload bytes never leak into it.
+ * <p>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class FlowHashCheck {
+    private static final int ROUNDS = 100000;
+
+    private final Random random;
+
+    private FlowHashCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        FlowHashCheck check = new FlowHashCheck(seed);
+        try {
+            check.run();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + ROUNDS + " frames compared");
+        System.exit(0);
+    }
+
+    private void run() {
+        for (int round = 0; round < ROUNDS; round++) {
+            IPv4 packet = this.randomPacket();
+            Ethernet ether = new Ethernet();
+            ether.setSourceMACAddress("00:00:00:00:00:01");
+            ether.setDestinationMACAddress("00:00:00:00:00:02");
+            ether.setEtherType(Ethernet.TYPE_IPv4);
+            ether.setPayload(packet);
+            byte[] bytes = ether.serialize();
+
+            // At any offset, with Ethernet padding some of the time
+            int offset = this.random.nextInt(32);
+            int length = bytes.length + ((this.random.nextInt(4) == 0) ? this.random.nextInt(16) : 0);
+            byte[] buf = new byte[offset + length + this.random.nextInt(8)];
+            this.random.nextBytes(buf);
+            System.arraycopy(bytes, 0, buf, offset, bytes.length);
+            for (int i = offset + bytes.length; i < offset + length; i++) {
+                buf[i] = 0;
+            }
+
+            int raw = FlowHash.hash(buf, offset, length);
+            int expected = FlowHash.hash(packet.getSourceAddress(), packet.getDestinationAddress(),
+                    packet.getProtocol(), this.ports(packet));
+            if (raw != expected) {
+                throw new AssertionError("raw hash differs from the 5-tuple's for " + describe(packet));
+            }
+            for (boolean lazy : new boolean[] { false, true }) {
+                BasePacket.setLazyDecode(lazy);
+                Ethernet decoded = new Ethernet();
+                decoded.deserialize(buf, offset, length);
+                int hash = FlowHash.hash((IPv4) decoded.getPayload());
+                if (hash != raw) {
+                    throw new AssertionError((lazy ? "lazily" : "eagerly") + " decoded hash differs from raw for "
+                            + describe(packet));
+                }
+            }
+            BasePacket.setLazyDecode(false);
+        }
+    }
+
+    private IPv4 randomPacket() {
+        IPv4 packet = new IPv4();
+        packet.setTtl((byte) (1 + this.random.nextInt(255)));
+        packet.setSourceAddress(this.random.nextInt());
+        packet.setDestinationAddress(this.random.nextInt());
+        packet.setIdentification((short) this.random.nextInt());
+        if (this.random.nextInt(4) == 0) {
+            byte[] options = new byte[4 * (1 + this.random.nextInt(10))];
+            this.random.nextBytes(options);
+            packet.setOptions(options);
+        }
+        int fragment = this.random.nextInt(8);
+        if (0 == fragment) {
+            // A later fragment, which carries no transport header
+            packet.setFragmentOffset((short) (1 + this.random.nextInt(0x1fff)));
+        } else if (1 == fragment) {
+            // The first fragment of several
+            packet.setFlags((byte) 1);
+        }
+
+        IPacket payload;
+        int protocol = this.random.nextInt(4);
+        if (0 == protocol) {
+            TCP tcp = new TCP();
+            tcp.setSourcePort((short) this.random.nextInt());
+            tcp.setDestinationPort((short) this.random.nextInt());
+            tcp.setPayload(this.randomData());
+            packet.setProtocol(IPv4.PROTOCOL_TCP);
+            payload = tcp;
+        } else if (1 == protocol) {
+            UDP udp = new UDP();
+            udp.setSourcePort(this.randomUdpPort());
+            udp.setDestinationPort(this.randomUdpPort());
+            udp.setPayload(this.randomData());
+            packet.setProtocol(IPv4.PROTOCOL_UDP);
+            payload = udp;
+        } else if (2 == protocol) {
+            ICMP icmp = new ICMP();
+            icmp.setIcmpType(ICMP.TYPE_ECHO_REQUEST);
+            icmp.setPayload(this.randomData());
+            packet.setProtocol(IPv4.PROTOCOL_ICMP);
+            payload = icmp;
+        } else {
+            packet.setProtocol((byte) (IPv4.PROTOCOL_UDP + 1 + this.random.nextInt(100)));
+            payload = this.randomData();
+        }
+        packet.setPayload(payload);
+        return packet;
+    }
+
+    /**
+     * @return the ports as FlowHash takes them, from the packet as built
+     */
+    private int ports(IPv4 packet) {
+        if (packet.getFragmentOffset() != 0) {
+            return 0;
+        }
+        IPacket payload = packet.getPayload();
+        if (payload instanceof TCP) {
+            TCP tcp = (TCP) payload;
+            return (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+        }
+        if (payload instanceof UDP) {
+            UDP udp = (UDP) payload;
+            return (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+        }
+        return 0;
+    }
+
+    /**
+     * @return any port but RIP's, whose payload would be decoded as RIP
+     */
+    private short randomUdpPort() {
+        short port;
+        do {
+            port = (short) this.random.nextInt();
+        } while (UDP.RIP_PORT == port);
+        return port;
+    }
+
+    private Data randomData() {
+        byte[] data = new byte[this.random.nextInt(64)];
+        this.random.nextBytes(data);
+        return new Data(data);
+    }
+
+    private static String describe(IPv4 packet) {
+        return String.format("protocol %d, %d header words, fragment offset %d, flags %d",
+                packet.getProtocol() & 0xff, packet.getHeaderLength(), packet.getFragmentOffset(),
+                packet.getFlags());
+    }
+}
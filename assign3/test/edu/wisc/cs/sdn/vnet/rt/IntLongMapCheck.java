@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Randomized checks of IntLongMap:
+ * <ul>
+ * <li>put, remove, get, size and forEach against a HashMap, with keys that
+ * come back after removal and enough churn to rebuild the table</li>
+ * <li>readers running during writes, which must always find keys that are
+ * never removed, with values no older than ones already seen</li>
+ * </ul>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class IntLongMapCheck {
+    private static final int ROUNDS = 1000000;
+    private static final int STABLE_KEYS = 64;
+    private static final int CHURN_WINDOW = 1000;
+
+    private final Random random;
+    private int checks;
+
+    private IntLongMapCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        IntLongMapCheck check = new IntLongMapCheck(seed);
+        try {
+            check.checkModel();
+            check.checkArguments();
+            check.checkReaders();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + check.checks + " operations compared");
+        System.exit(0);
+    }
+
+    private void checkModel() {
+        IntLongMap map = new IntLongMap();
+        Map<Integer, Long> model = new HashMap<Integer, Long>();
+        for (int round = 0; round < ROUNDS; round++) {
+            int key = this.randomKey();
+            int op = this.random.nextInt(10);
+            if (op < 5) {
+                long value = this.random.nextLong() & Long.MAX_VALUE;
+                Long old = model.put(key, value);
+                expect(map.put(key, value), old, "put " + key);
+            } else if (op < 8) {
+                expect(map.remove(key), model.remove(key), "remove " + key);
+            } else {
+                expect(map.get(key), model.get(key), "get " + key);
+            }
+            if (map.size() != model.size()) {
+                throw new AssertionError("size " + map.size() + " expected " + model.size());
+            }
+            this.checks++;
+
+            if (round % 10000 == 0) {
+                Map<Integer, Long> seen = new HashMap<Integer, Long>();
+                map.forEach((k, v) -> {
+                    if (seen.put(k, v) != null) {
+                        throw new AssertionError("forEach visited " + k + " twice");
+                    }
+                });
+                if (!seen.equals(model)) {
+                    throw new AssertionError("forEach visited " + seen.size() + " entries, expected "
+                            + model.size());
+                }
+            }
+        }
+    }
+
+    private void checkArguments() {
+        IntLongMap map = new IntLongMap();
+        try {
+            map.put(0, 1);
+            throw new AssertionError("put accepted key 0");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            map.put(1, IntLongMap.ABSENT);
+            throw new AssertionError("put accepted value ABSENT");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // Key 0 marks empty slots, and must not be found in one
+        if (map.get(0) != IntLongMap.ABSENT || map.remove(0) != IntLongMap.ABSENT || map.size() != 0) {
+            throw new AssertionError("key 0 found in an empty map");
+        }
+    }
+
+    /**
+     * Write stable keys with increasing values while churning other keys
+     * through rebuilds; readers check the stable keys on every pass.
+     */
+    private void checkReaders() throws InterruptedException {
+        IntLongMap map = new IntLongMap();
+        int[] stable = new int[STABLE_KEYS];
+        for (int i = 0; i < STABLE_KEYS; i++) {
+            stable[i] = 0x40000000 | (i * 7919 + 1);
+            map.put(stable[i], 0);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<String>();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                long[] last = new long[STABLE_KEYS];
+                while (!done.get() && null == failure.get()) {
+                    for (int i = 0; i < STABLE_KEYS; i++) {
+                        long value = map.get(stable[i]);
+                        if (value < last[i]) {
+                            failure.set("key " + stable[i] + " read " + value + " after " + last[i]);
+                        }
+                        last[i] = value;
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        long[] versions = new long[STABLE_KEYS];
+        for (int round = 0; round < ROUNDS && null == failure.get(); round++) {
+            int i = this.random.nextInt(STABLE_KEYS);
+            map.put(stable[i], ++versions[i]);
+            // A window of fresh keys, below the stable ones, fills the table
+            // with removed slots so it keeps being rebuilt under the readers
+            map.put(1 + round, round);
+            if (round >= CHURN_WINDOW) {
+                map.remove(1 + round - CHURN_WINDOW);
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    /**
+     * @return a key from a small range most of the time, so keys come back
+     * after removal, otherwise any key but 0
+     */
+    private int randomKey() {
+        if (this.random.nextInt(4) != 0) {
+            return 1 + this.random.nextInt(4096);
+        }
+        int key = this.random.nextInt();
+        return (0 == key) ? 1 : key;
+    }
+
+    private static void expect(long actual, Long expected, String what) {
+        long wanted = (null == expected) ? IntLongMap.ABSENT : expected;
+        if (actual != wanted) {
+            throw new AssertionError(what + ": expected " + wanted + " got " + actual);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Randomized checks of the route lookup structures against a linear scan:
+ * <ul>
+ * <li>PrefixTrie after every round of path-copying edits, including
+ * equal-cost next hops, removals and enough churn to compact the store</li>
+ * <li>earlier trie snapshots, which later edits must leave unchanged</li>
+ * <li>PrefixTrie.lookupBatch against single lookups</li>
+ * <li>Dir248Table, single and batch, against the trie</li>
+ * <li>RouteTable updates, which readers must see all or nothing of</li>
+ * </ul>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class RouteTableCheck {
+    private static final int ROUTES = 3000;
+    private static final int ROUNDS = 400;
+    private static final int EDITS_PER_ROUND = 400;
+    private static final int LOOKUPS_PER_CHECK = 400;
+    private static final int BATCH = 32;
+
+    /**
+     * A next hop of the reference model.
+     */
+    private static class Hop {
+        final int gateway;
+        final Iface iface;
+
+        Hop(int gateway, Iface iface) {
+            this.gateway = gateway;
+            this.iface = iface;
+        }
+    }
+
+    /**
+     * A prefix of the reference model with its next hops in order.
+     */
+    private static class Route {
+        final int prefix;
+        final int length;
+        final List<Hop> hops;
+
+        Route(int prefix, int length, List<Hop> hops) {
+            this.prefix = prefix;
+            this.length = length;
+            this.hops = hops;
+        }
+    }
+
+    /**
+     * Reference routes by prefix, with an index for picking one at random.
+     */
+    private static class Model {
+        final Map<Long, Route> routes = new HashMap<Long, Route>();
+        final List<Long> keys = new ArrayList<Long>();
+        final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+
+        void put(Route route) {
+            long key = key(route.prefix, route.length);
+            if (null == this.routes.put(key, route)) {
+                this.positions.put(key, this.keys.size());
+                this.keys.add(key);
+            }
+        }
+
+        void remove(Route route) {
+            long key = key(route.prefix, route.length);
+            this.routes.remove(key);
+            int position = this.positions.remove(key);
+            long last = this.keys.remove(this.keys.size() - 1);
+            if (last != key) {
+                this.keys.set(position, last);
+                this.positions.put(last, position);
+            }
+        }
+
+        Route pick(Random random) {
+            return this.routes.get(this.keys.get(random.nextInt(this.keys.size())));
+        }
+
+        int size() {
+            return this.routes.size();
+        }
+    }
+
+    private final Random random;
+    private final Iface[] ifaces;
+    private final int[] bases;
+    private int checks;
+    private int compactions;
+
+    private RouteTableCheck(long seed) {
+        this.random = new Random(seed);
+        this.ifaces = new Iface[4];
+        for (int i = 0; i < this.ifaces.length; i++) {
+            this.ifaces[i] = new Iface("eth" + i);
+        }
+        // A few shared top bytes, so prefixes nest and paths get compressed and split
+        this.bases = new int[8];
+        for (int i = 0; i < this.bases.length; i++) {
+            this.bases[i] = this.random.nextInt() & 0xff000000;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        RouteTableCheck check = new RouteTableCheck(seed);
+        try {
+            check.checkTrie();
+            check.checkSnapshots();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + check.checks + " lookups compared, " + check.compactions + " compactions");
+        System.exit(0);
+    }
+
+    /**
+     * Edit the trie at random, comparing it with the reference after every
+     * round and comparing earlier snapshots again at the end.
+     */
+    private void checkTrie() {
+        Model model = new Model();
+        PrefixTrie trie = new PrefixTrie();
+        RouteStore store = null;
+        List<PrefixTrie> oldTries = new ArrayList<PrefixTrie>();
+        List<Map<Long, Route>> oldModels = new ArrayList<Map<Long, Route>>();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            PrefixTrie.Editor editor = trie.edit();
+            for (int i = 0; i < EDITS_PER_ROUND; i++) {
+                this.edit(editor, model);
+            }
+            // Editors see their own changes before build
+            for (int i = 0; i < 20 && model.size() > 0; i++) {
+                Route route = model.pick(this.random);
+                this.assertEntry(route, editor.get(route.prefix, route.length), "editor get");
+            }
+            trie = editor.build();
+
+            if (trie.size() != model.size()) {
+                throw new AssertionError("size " + trie.size() + " expected " + model.size());
+            }
+            this.compare(trie, model.routes, "round " + round);
+            if (round % 50 == 0) {
+                oldTries.add(trie);
+                oldModels.add(new HashMap<Long, Route>(model.routes));
+            }
+            if (round % 100 == 99) {
+                this.compareDir248(trie, model.routes);
+            }
+
+            // Entries move to a new store when the trie compacts
+            Route any = model.pick(this.random);
+            RouteStore current = trie.get(any.prefix, any.length).getStore();
+            if (store != null && current != store) {
+                this.compactions++;
+            }
+            store = current;
+        }
+        for (int i = 0; i < oldTries.size(); i++) {
+            this.compare(oldTries.get(i), oldModels.get(i), "snapshot " + i);
+        }
+        if (0 == this.compactions) {
+            throw new AssertionError("edits never compacted the trie's store");
+        }
+    }
+
+    /**
+     * Apply one random edit to both the trie and the reference.
+     */
+    private void edit(PrefixTrie.Editor editor, Model model) {
+        int op = this.random.nextInt(10);
+        if (model.size() < ROUTES && op < 4) {
+            // New prefix, or replace an existing one's next hops
+            int length = this.randomLength();
+            int prefix = this.randomAddress() & PrefixTrie.mask(length);
+            Hop hop = this.randomHop();
+            editor.put(prefix, PrefixTrie.mask(length), hop.gateway, hop.iface);
+            List<Hop> hops = new ArrayList<Hop>();
+            hops.add(hop);
+            model.put(new Route(prefix, length, hops));
+        } else if (0 == model.size()) {
+            return;
+        } else if (op < 6) {
+            // Churn: the same prefix again with a new next hop
+            Route route = model.pick(this.random);
+            Hop hop = this.randomHop();
+            editor.put(route.prefix, PrefixTrie.mask(route.length), hop.gateway, hop.iface);
+            List<Hop> hops = new ArrayList<Hop>();
+            hops.add(hop);
+            model.put(new Route(route.prefix, route.length, hops));
+        } else if (op < 8) {
+            // Equal-cost next hop added to or removed from an entry
+            Route route = model.pick(this.random);
+            RouteEntry entry = editor.get(route.prefix, route.length);
+            List<Hop> hops = new ArrayList<Hop>(route.hops);
+            RouteEntry changed;
+            if (hops.size() > 1 && this.random.nextBoolean()) {
+                Hop hop = hops.remove(this.random.nextInt(hops.size()));
+                changed = entry.withoutNextHop(hop.gateway, hop.iface);
+            } else {
+                Hop hop = this.randomHop();
+                changed = entry.withNextHop(hop.gateway, hop.iface);
+                if (changed != entry) {
+                    hops.add(hop);
+                }
+            }
+            editor.put(route.prefix, route.length, changed);
+            model.put(new Route(route.prefix, route.length, hops));
+        } else {
+            Route route = model.pick(this.random);
+            if (null == editor.remove(route.prefix, route.length)) {
+                throw new AssertionError("remove found nothing for " + describe(route));
+            }
+            model.remove(route);
+        }
+    }
+
+    /**
+     * Compare single and batch trie lookups with a linear scan.
+     */
+    private void compare(PrefixTrie trie, Map<Long, Route> model, String where) {
+        List<Route> routes = new ArrayList<Route>(model.values());
+        int[] ips = new int[BATCH];
+        RouteEntry[] out = new RouteEntry[BATCH];
+        for (int i = 0; i < LOOKUPS_PER_CHECK; i += BATCH) {
+            for (int j = 0; j < BATCH; j++) {
+                ips[j] = this.lookupAddress(routes);
+            }
+            trie.lookupBatch(ips, BATCH, out);
+            for (int j = 0; j < BATCH; j++) {
+                Route expected = longestMatch(routes, ips[j]);
+                this.assertEntry(expected, trie.lookup(ips[j]), where + " lookup " + ip(ips[j]));
+                this.assertEntry(expected, out[j], where + " batch lookup " + ip(ips[j]));
+                this.checks++;
+            }
+        }
+        for (Route route : routes) {
+            this.assertEntry(route, trie.get(route.prefix, route.length), where + " get");
+        }
+    }
+
+    /**
+     * Compile the trie and compare the compiled lookups with the trie's.
+     */
+    private void compareDir248(PrefixTrie trie, Map<Long, Route> model) {
+        List<RouteEntry> entries = new ArrayList<RouteEntry>();
+        trie.collect(entries);
+        Dir248Table table = new Dir248Table(entries);
+        List<Route> routes = new ArrayList<Route>(model.values());
+        int[] ips = new int[BATCH];
+        RouteEntry[] out = new RouteEntry[BATCH];
+        for (int i = 0; i < 20 * LOOKUPS_PER_CHECK; i += BATCH) {
+            for (int j = 0; j < BATCH; j++) {
+                ips[j] = this.lookupAddress(routes);
+            }
+            table.lookupBatch(ips, BATCH, out);
+            for (int j = 0; j < BATCH; j++) {
+                Route expected = longestMatch(routes, ips[j]);
+                this.assertEntry(expected, table.lookup(ips[j]), "dir248 lookup " + ip(ips[j]));
+                this.assertEntry(expected, out[j], "dir248 batch lookup " + ip(ips[j]));
+                this.checks++;
+            }
+        }
+    }
+
+    /**
+     * Publish updates that each replace a pair of routes together, while
+     * readers check they never see one route of a pair without the other.
+     */
+    private void checkSnapshots() throws InterruptedException {
+        RouteTable table = new RouteTable();
+        int first = 0x0a000000;
+        int second = 0x0b000000;
+        int mask = PrefixTrie.mask(16);
+        table.insert(first, 1, mask, this.ifaces[0]);
+        table.insert(second, 1, mask, this.ifaces[0]);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<String>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread reader = new Thread(() -> {
+                RouteEntry[] out = new RouteEntry[2];
+                int[] ips = { first | 1, second | 1 };
+                while (!done.get() && null == failure.get()) {
+                    // One batch is served from one snapshot
+                    table.lookupBatch(ips, 2, out);
+                    if (out[0].getGatewayAddress() != out[1].getGatewayAddress()) {
+                        failure.set("torn update: gateways " + out[0].getGatewayAddress() + " and "
+                                + out[1].getGatewayAddress());
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int gateway = 2; gateway < 20000 && null == failure.get(); gateway++) {
+            RouteTable.Update update = table.beginUpdate();
+            update.insert(first, gateway, mask, this.ifaces[0]);
+            update.insert(second, gateway, mask, this.ifaces[0]);
+            update.commit();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static Route longestMatch(List<Route> routes, int ip) {
+        Route best = null;
+        for (Route route : routes) {
+            if (((ip ^ route.prefix) & PrefixTrie.mask(route.length)) == 0
+                    && (null == best || route.length > best.length)) {
+                best = route;
+            }
+        }
+        return best;
+    }
+
+    private void assertEntry(Route expected, RouteEntry actual, String where) {
+        if (null == expected || null == actual) {
+            if (expected != null || actual != null) {
+                throw new AssertionError(where + ": expected " + describe(expected) + " got " + actual);
+            }
+            return;
+        }
+        boolean same = actual.getDestinationAddress() == expected.prefix
+                && actual.getMaskAddress() == PrefixTrie.mask(expected.length)
+                && actual.getNextHopCount() == expected.hops.size();
+        for (int i = 0; same && i < expected.hops.size(); i++) {
+            Hop hop = expected.hops.get(i);
+            same = actual.getGatewayAddress(i) == hop.gateway && actual.getInterface(i) == hop.iface;
+        }
+        if (!same) {
+            throw new AssertionError(where + ": expected " + describe(expected) + " got " + actual);
+        }
+    }
+
+    /**
+     * @return an address inside a stored prefix most of the time, otherwise
+     * a random one
+     */
+    private int lookupAddress(List<Route> routes) {
+        if (routes.isEmpty() || this.random.nextInt(4) == 0) {
+            return this.randomAddress();
+        }
+        Route route = routes.get(this.random.nextInt(routes.size()));
+        int mask = PrefixTrie.mask(route.length);
+        return route.prefix | (this.random.nextInt() & ~mask);
+    }
+
+    private int randomAddress() {
+        int base = this.bases[this.random.nextInt(this.bases.length)];
+        return base | (this.random.nextInt() & 0x00ffffff);
+    }
+
+    /**
+     * @return a prefix length between 0 and 32, mostly 8 to 24
+     */
+    private int randomLength() {
+        int r = this.random.nextInt(20);
+        if (0 == r) {
+            return this.random.nextInt(8);
+        }
+        if (1 == r) {
+            return 25 + this.random.nextInt(8);
+        }
+        return 8 + this.random.nextInt(17);
+    }
+
+    private Hop randomHop() {
+        return new Hop(this.random.nextInt(64) + 1, this.ifaces[this.random.nextInt(this.ifaces.length)]);
+    }
+
+    private static long key(int prefix, int length) {
+        return ((long) prefix << 8) | length;
+    }
+
+    private static String describe(Route route) {
+        if (null == route) {
+            return "null";
+        }
+        return ip(route.prefix) + "/" + route.length + " via " + route.hops.size() + " hops";
+    }
+
+    private static String ip(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "."
+                + (address & 0xff);
+    }
+}
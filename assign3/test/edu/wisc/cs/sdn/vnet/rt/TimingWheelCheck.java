@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Randomized check of TimingWheel against a model of when each timer is due:
+ * timers are scheduled, rescheduled and cancelled at random, some of them
+ * again from the expiry handler, with deadlines reaching many times round
+ * the wheel. Every timer must fire exactly once, on the first tick at or
+ * after its deadline, in tick order, and never after being cancelled.
+ * <p>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class TimingWheelCheck {
+    private static final int ROUNDS = 200000;
+    private static final int SLOTS = 16;
+    private static final long TICK_MS = 10;
+
+    /**
+     * Longest deadline, well past one turn of the wheel
+     */
+    private static final long MAX_DELAY_MS = 20 * SLOTS * TICK_MS;
+
+    private final Random random;
+    private final TimingWheel<Integer> wheel;
+    private final Map<Integer, TimingWheel.Timeout<Integer>> timeouts;
+
+    /**
+     * Tick each scheduled timer is due on
+     */
+    private final Map<Integer, Long> due;
+
+    private long now;
+    private long currentTick;
+    private long lastFired;
+    private int fired;
+
+    private TimingWheelCheck(long seed) {
+        this.random = new Random(seed);
+        this.now = 1000000000L + this.random.nextInt(1000000);
+        this.currentTick = this.now / TICK_MS;
+        this.wheel = new TimingWheel<Integer>(SLOTS, TICK_MS, this.now);
+        this.timeouts = new HashMap<Integer, TimingWheel.Timeout<Integer>>();
+        this.due = new HashMap<Integer, Long>();
+    }
+
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        TimingWheelCheck check = new TimingWheelCheck(seed);
+        try {
+            check.run();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + check.fired + " timers fired");
+        System.exit(0);
+    }
+
+    private void run() {
+        int next = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int op = this.random.nextInt(10);
+            if (op < 4 || this.timeouts.isEmpty()) {
+                int item = next++;
+                long deadline = this.randomDeadline();
+                this.timeouts.put(item, this.wheel.schedule(item, deadline));
+                this.due.put(item, this.expectedTick(deadline));
+            } else if (op < 6) {
+                // Rescheduling also brings back timers that fired or were cancelled
+                int item = this.pick();
+                long deadline = this.randomDeadline();
+                this.wheel.reschedule(this.timeouts.get(item), deadline);
+                this.due.put(item, this.expectedTick(deadline));
+            } else if (op < 7) {
+                int item = this.pick();
+                this.wheel.cancel(this.timeouts.get(item));
+                this.due.remove(item);
+            } else {
+                this.advance(this.now + this.random.nextInt((int) (3 * TICK_MS)));
+            }
+
+            if (this.wheel.size() != this.due.size()) {
+                throw new AssertionError("size " + this.wheel.size() + " expected " + this.due.size());
+            }
+        }
+        this.advance(this.now + MAX_DELAY_MS + TICK_MS);
+        if (this.wheel.size() != 0 || !this.due.isEmpty()) {
+            throw new AssertionError("timers left after every deadline passed: " + this.due);
+        }
+    }
+
+    private void advance(long to) {
+        long toTick = to / TICK_MS;
+        this.lastFired = this.currentTick;
+        this.wheel.advance(to, item -> this.expired(item, toTick));
+        this.now = to;
+        this.currentTick = toTick;
+        for (Map.Entry<Integer, Long> entry : this.due.entrySet()) {
+            if (entry.getValue() <= toTick) {
+                throw new AssertionError("timer " + entry.getKey() + " due on tick " + entry.getValue()
+                        + " did not fire by tick " + toTick);
+            }
+        }
+    }
+
+    private void expired(int item, long toTick) {
+        Long tick = this.due.remove(item);
+        if (null == tick) {
+            throw new AssertionError("timer " + item + " fired but was not scheduled");
+        }
+        if (tick > toTick) {
+            throw new AssertionError("timer " + item + " due on tick " + tick + " fired by tick " + toTick);
+        }
+        if (tick < this.lastFired) {
+            throw new AssertionError("timer " + item + " due on tick " + tick + " fired after tick "
+                    + this.lastFired);
+        }
+        if (this.timeouts.get(item).isScheduled()) {
+            throw new AssertionError("timer " + item + " still scheduled in its handler");
+        }
+        this.lastFired = tick;
+        this.fired++;
+
+        // Handlers may schedule the timer again, possibly due before the advance ends
+        if (this.random.nextInt(4) == 0) {
+            long deadline = tick * TICK_MS + this.random.nextInt((int) (4 * TICK_MS));
+            this.wheel.reschedule(this.timeouts.get(item), deadline);
+            this.due.put(item, Math.max(tick + 1, ceilTick(deadline)));
+        }
+    }
+
+    /**
+     * @return the first tick at or after the deadline that has not run yet
+     */
+    private long expectedTick(long deadline) {
+        return Math.max(this.currentTick + 1, ceilTick(deadline));
+    }
+
+    private long randomDeadline() {
+        // Some deadlines already passed, which fire on the next tick
+        return this.now - 2 * TICK_MS + (long) (this.random.nextDouble() * MAX_DELAY_MS);
+    }
+
+    /**
+     * @return any timer created so far, scheduled or not
+     */
+    private int pick() {
+        return this.random.nextInt(this.timeouts.size());
+    }
+
+    private static long ceilTick(long time) {
+        return (time + TICK_MS - 1) / TICK_MS;
+    }
+}
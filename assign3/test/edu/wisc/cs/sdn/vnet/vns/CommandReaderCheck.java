@@ -0,0 +1,194 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Randomized check of CommandReader framing: a stream of commands of random
+ * sizes, some larger than a receive buffer, is delivered in reads of random
+ * sizes. Every command must come back whole and in order. Commands the
+ * caller still holds must not change while later ones are framed, and the
+ * stream must end cleanly. Lengths the server may not send must be
+ * rejected.
+ * <p>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class CommandReaderCheck {
+    private static final int COMMANDS = 20000;
+
+    /**
+     * Most commands the caller holds before releasing the oldest
+     */
+    private static final int MAX_HELD = 8;
+
+    /**
+     * Channel handing out a byte array in reads of random sizes.
+     */
+    private static class ChoppyChannel implements ReadableByteChannel {
+        private final byte[] data;
+        private final Random random;
+        private int pos;
+
+        ChoppyChannel(byte[] data, Random random) {
+            this.data = data;
+            this.random = random;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (this.pos == this.data.length) {
+                return -1;
+            }
+            int max = (this.random.nextInt(8) == 0) ? 256 * 1024 : 2048;
+            int n = Math.min(Math.min(dst.remaining(), this.data.length - this.pos),
+                    1 + this.random.nextInt(max));
+            dst.put(this.data, this.pos, n);
+            this.pos += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A command handed out by the reader and not yet released.
+     */
+    private static class Held {
+        final ByteBuffer command;
+        final BufferPool.Chunk chunk;
+        final int index;
+
+        Held(ByteBuffer command, BufferPool.Chunk chunk, int index) {
+            this.command = command;
+            this.chunk = chunk;
+            this.index = index;
+        }
+    }
+
+    private final Random random;
+    private long bytes;
+
+    private CommandReaderCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        CommandReaderCheck check = new CommandReaderCheck(seed);
+        try {
+            check.checkStream();
+            check.checkBadLengths();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + COMMANDS + " commands, " + check.bytes + " bytes framed");
+        System.exit(0);
+    }
+
+    private void checkStream() throws IOException {
+        int[] lengths = new int[COMMANDS];
+        long total = 0;
+        for (int i = 0; i < COMMANDS; i++) {
+            lengths[i] = this.randomLength();
+            total += lengths[i];
+        }
+        ByteBuffer stream = ByteBuffer.allocate((int) total);
+        for (int i = 0; i < COMMANDS; i++) {
+            stream.putInt(lengths[i]);
+            stream.putInt(i);
+            for (int j = 8; j < lengths[i]; j++) {
+                stream.put(expectedByte(i, j));
+            }
+        }
+
+        CommandReader reader = new CommandReader(new ChoppyChannel(stream.array(), this.random));
+        ArrayDeque<Held> held = new ArrayDeque<Held>();
+        for (int i = 0; i < COMMANDS; i++) {
+            ByteBuffer command = reader.next();
+            if (null == command) {
+                throw new AssertionError("stream ended after " + i + " of " + COMMANDS + " commands");
+            }
+            if (command.remaining() != lengths[i]) {
+                throw new AssertionError("command " + i + " has " + command.remaining() + " bytes, expected "
+                        + lengths[i]);
+            }
+            verify(command, i);
+            this.bytes += lengths[i];
+
+            held.addLast(new Held(command, reader.getLastChunk(), i));
+            while (held.size() > this.random.nextInt(MAX_HELD + 1)) {
+                Held oldest = held.removeFirst();
+                // Still intact, although later commands were read since
+                verify(oldest.command, oldest.index);
+                oldest.chunk.release();
+            }
+        }
+        for (Held h : held) {
+            verify(h.command, h.index);
+            h.chunk.release();
+        }
+        if (reader.next() != null) {
+            throw new AssertionError("command read past the end of the stream");
+        }
+    }
+
+    private void checkBadLengths() {
+        int[] bad = { 0, 7, -1, CommandReader.MAX_COMMAND_SIZE + 1 };
+        for (int length : bad) {
+            ByteBuffer stream = ByteBuffer.allocate(16);
+            stream.putInt(length);
+            CommandReader reader = new CommandReader(new ChoppyChannel(stream.array(), this.random));
+            try {
+                reader.next();
+                throw new AssertionError("length " + length + " accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * @return mostly packet-sized lengths, sometimes larger than a receive
+     * buffer
+     */
+    private int randomLength() {
+        int r = this.random.nextInt(1000);
+        if (0 == r) {
+            return CommandReader.CHUNK_SIZE + this.random.nextInt(CommandReader.CHUNK_SIZE);
+        }
+        if (r < 10) {
+            return 8 + this.random.nextInt(64 * 1024);
+        }
+        return 8 + this.random.nextInt(1600);
+    }
+
+    private static void verify(ByteBuffer command, int index) {
+        int start = command.position();
+        int length = command.getInt(start);
+        if (command.getInt(start + 4) != index) {
+            throw new AssertionError("command " + index + " holds command " + command.getInt(start + 4));
+        }
+        for (int j = 8; j < length; j++) {
+            if (command.get(start + j) != expectedByte(index, j)) {
+                throw new AssertionError("command " + index + " differs at byte " + j);
+            }
+        }
+    }
+
+    private static byte expectedByte(int index, int offset) {
+        return (byte) (index * 31 + offset * 7);
+    }
+}
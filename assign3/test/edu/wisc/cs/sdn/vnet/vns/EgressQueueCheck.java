@@ -0,0 +1,133 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks of EgressQueue:
+ * <ul>
+ * <li>a full queue drops new commands, counts them, and takes commands
+ * again once the writer frees a slot</li>
+ * <li>producers offering concurrently with one consumer: every accepted
+ * command comes out exactly once, in each producer's order, the queue
+ * never holds more than its capacity, and every rejected command is
+ * counted as a drop</li>
+ * </ul>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first failure.
+ */
+public class EgressQueueCheck {
+    private static final int PRODUCERS = 4;
+    private static final int PER_PRODUCER = 2000000;
+
+    public static void main(String[] args) throws InterruptedException {
+        try {
+            checkCapacity();
+            checkConcurrent();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK");
+        System.exit(0);
+    }
+
+    private static void checkCapacity() {
+        EgressQueue queue = new EgressQueue("eth0");
+        for (int i = 0; i < EgressQueue.CAPACITY; i++) {
+            if (!queue.offer(pending(0, i))) {
+                throw new AssertionError("dropped command " + i + " below capacity");
+            }
+        }
+        if (queue.offer(pending(0, EgressQueue.CAPACITY)) || queue.getDrops() != 1) {
+            throw new AssertionError("full queue took a command");
+        }
+        PacketWriter.Pending first = queue.poll();
+        if (null == first || first.length != 0) {
+            throw new AssertionError("head of the queue was not the first command");
+        }
+        if (!queue.offer(pending(0, EgressQueue.CAPACITY + 1))) {
+            throw new AssertionError("queue still full after a poll");
+        }
+        for (int i = 1; i < EgressQueue.CAPACITY; i++) {
+            PacketWriter.Pending pending = queue.poll();
+            if (null == pending || pending.length != i) {
+                throw new AssertionError("command " + i + " out of order");
+            }
+        }
+        PacketWriter.Pending last = queue.poll();
+        if (null == last || last.length != EgressQueue.CAPACITY + 1 || !queue.isEmpty()
+                || queue.poll() != null) {
+            throw new AssertionError("queue did not end with the command offered after the poll");
+        }
+    }
+
+    private static void checkConcurrent() throws InterruptedException {
+        EgressQueue queue = new EgressQueue("eth0");
+        AtomicLong accepted = new AtomicLong();
+        AtomicBoolean producing = new AtomicBoolean(true);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            producers[p] = new Thread(() -> {
+                for (int seq = 0; seq < PER_PRODUCER; seq++) {
+                    if (queue.offer(pending(producer, seq))) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        // The writer's side: take commands while the producers run, then drain
+        Thread monitor = new Thread(() -> {
+            for (Thread producer : producers) {
+                try {
+                    producer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            producing.set(false);
+        });
+        monitor.start();
+
+        int[] next = new int[PRODUCERS];
+        long taken = 0;
+        while (producing.get() || !queue.isEmpty()) {
+            if (queue.getDepth() > EgressQueue.CAPACITY) {
+                throw new AssertionError("queue holds " + queue.getDepth() + " commands");
+            }
+            PacketWriter.Pending pending = queue.poll();
+            if (null == pending) {
+                continue;
+            }
+            if (pending.length < next[pending.offset]) {
+                throw new AssertionError("producer " + pending.offset + " command " + pending.length
+                        + " after " + (next[pending.offset] - 1));
+            }
+            next[pending.offset] = pending.length + 1;
+            taken++;
+        }
+        monitor.join();
+
+        long offered = (long) PRODUCERS * PER_PRODUCER;
+        if (taken != accepted.get()) {
+            throw new AssertionError("took " + taken + " commands, " + accepted.get() + " were accepted");
+        }
+        if (queue.getDrops() != offered - accepted.get()) {
+            throw new AssertionError(queue.getDrops() + " drops counted, " + (offered - accepted.get())
+                    + " commands rejected");
+        }
+        System.out.println(taken + " commands taken, " + queue.getDrops() + " dropped, max depth "
+                + queue.getMaxDepth());
+    }
+
+    /**
+     * @return a command carrying its producer as the offset and its sequence
+     * number as the length
+     */
+    private static PacketWriter.Pending pending(int producer, int seq) {
+        return new PacketWriter.Pending(null, producer, seq, null);
+    }
+}
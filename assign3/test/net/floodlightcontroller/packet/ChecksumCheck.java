@@ -0,0 +1,151 @@
+package net.floodlightcontroller.packet;
+
+import java.util.Random;
+
+/**
+ * Randomized checks of the IPv4 header checksum helpers used by the raw
+ * forwarding path:
+ * <ul>
+ * <li>computeChecksum against a plain one's-complement sum, for even and
+ * odd lengths at any offset</li>
+ * <li>a header carrying its computed checksum sums to zero, as does one
+ * serialized by IPv4</li>
+ * <li>updateChecksum after one changed word, including the TTL decrement,
+ * against computing the checksum again</li>
+ * </ul>
+ * Run with the compiled sources on the class path; exits with status 1 on
+ * the first mismatch. An optional argument sets the random seed.
+ */
+public class ChecksumCheck {
+    private static final int ROUNDS = 100000;
+
+    private final Random random;
+    private int checks;
+
+    private ChecksumCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+        System.out.println("seed " + seed);
+        ChecksumCheck check = new ChecksumCheck(seed);
+        try {
+            check.checkCompute();
+            check.checkHeaders();
+            check.checkUpdate();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("OK, " + check.checks + " checksums compared");
+        System.exit(0);
+    }
+
+    private void checkCompute() {
+        for (int round = 0; round < ROUNDS; round++) {
+            int offset = this.random.nextInt(16);
+            int length = this.random.nextInt(80);
+            byte[] data = new byte[offset + length + this.random.nextInt(4)];
+            this.random.nextBytes(data);
+            short expected = reference(data, offset, length);
+            short actual = IPv4.computeChecksum(data, offset, length);
+            if (expected != actual) {
+                throw new AssertionError(String.format("length %d at %d: expected %04x got %04x", length,
+                        offset, expected & 0xffff, actual & 0xffff));
+            }
+            this.checks++;
+        }
+    }
+
+    private void checkHeaders() {
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] header = this.randomHeader();
+            if (IPv4.computeChecksum(header, 0, header.length) != 0) {
+                throw new AssertionError("header with its checksum does not sum to zero");
+            }
+            this.checks++;
+        }
+        for (int round = 0; round < 1000; round++) {
+            IPv4 packet = new IPv4();
+            packet.setTtl((byte) (1 + this.random.nextInt(255)));
+            packet.setProtocol((byte) this.random.nextInt(256));
+            packet.setIdentification((short) this.random.nextInt());
+            packet.setSourceAddress(this.random.nextInt());
+            packet.setDestinationAddress(this.random.nextInt());
+            byte[] payload = new byte[this.random.nextInt(64)];
+            this.random.nextBytes(payload);
+            packet.setPayload(new Data(payload));
+            byte[] bytes = packet.serialize();
+            if (IPv4.computeChecksum(bytes, 0, packet.getHeaderLength() * 4) != 0) {
+                throw new AssertionError("serialized header does not sum to zero");
+            }
+            this.checks++;
+        }
+    }
+
+    private void checkUpdate() {
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] header = this.randomHeader();
+            short checksum = getShort(header, 10);
+
+            // Any word but the checksum itself, or the TTL as the router changes it
+            int word;
+            short newWord;
+            if (this.random.nextBoolean()) {
+                word = 8;
+                newWord = (short) (getShort(header, 8) - 0x100);
+            } else {
+                do {
+                    word = 2 * this.random.nextInt(header.length / 2);
+                } while (10 == word);
+                newWord = (short) this.random.nextInt();
+            }
+            short oldWord = getShort(header, word);
+            putShort(header, word, newWord);
+            short updated = IPv4.updateChecksum(checksum, oldWord, newWord);
+
+            putShort(header, 10, (short) 0);
+            short expected = IPv4.computeChecksum(header, 0, header.length);
+            if (updated != expected) {
+                throw new AssertionError(String.format("word %d %04x -> %04x: expected %04x got %04x", word,
+                        oldWord & 0xffff, newWord & 0xffff, expected & 0xffff, updated & 0xffff));
+            }
+            this.checks++;
+        }
+    }
+
+    /**
+     * @return a header of 5 to 15 words with version 4 and its checksum set
+     */
+    private byte[] randomHeader() {
+        int words = 5 + this.random.nextInt(11);
+        byte[] header = new byte[4 * words];
+        this.random.nextBytes(header);
+        header[0] = (byte) (0x40 | words);
+        putShort(header, 10, (short) 0);
+        putShort(header, 10, IPv4.computeChecksum(header, 0, header.length));
+        return header;
+    }
+
+    private static short reference(byte[] data, int offset, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xff;
+            sum += (0 == (i & 1)) ? b << 8 : b;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+
+    private static short getShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    private static void putShort(byte[] data, int offset, short value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}